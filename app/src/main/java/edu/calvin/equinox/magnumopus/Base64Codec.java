@@ -0,0 +1,128 @@
+package edu.calvin.equinox.magnumopus;
+
+import java.util.Arrays;
+
+/**
+ * Standard Base64, as used for tile images in the JSON format. Encodes on
+ * one line with padding; decodes with or without padding, skipping
+ * whitespace.
+ *
+ * Plain Java in place of android.util.Base64, so the benchmarks can run it
+ * off the device.
+ */
+
+public final class Base64Codec
+{
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * Value of each ASCII character, or -1 if it is not in the alphabet.
+     */
+    private static final byte[] DECODE = new byte[128];
+
+    static
+    {
+        Arrays.fill(DECODE, (byte)-1);
+        for (int i = 0; i < ALPHABET.length; ++i)
+        {
+            DECODE[ALPHABET[i]] = (byte)i;
+        }
+    }
+
+    private Base64Codec()
+    {
+    }
+
+    /**
+     * @return
+     *  The data in Base64 on a single line.
+     */
+    public static String encode(byte[] data)
+    {
+        char[] out = new char[(data.length + 2) / 3 * 4];
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < data.length; i += 3)
+        {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | data[i + 2] & 0xFF;
+            out[o++] = ALPHABET[bits >> 18];
+            out[o++] = ALPHABET[bits >> 12 & 0x3F];
+            out[o++] = ALPHABET[bits >> 6 & 0x3F];
+            out[o++] = ALPHABET[bits & 0x3F];
+        }
+
+        int rest = data.length - i;
+        if (rest > 0)
+        {
+            int bits = (data[i] & 0xFF) << 16;
+            if (rest == 2)
+            {
+                bits |= (data[i + 1] & 0xFF) << 8;
+            }
+            out[o++] = ALPHABET[bits >> 18];
+            out[o++] = ALPHABET[bits >> 12 & 0x3F];
+            out[o++] = rest == 2 ? ALPHABET[bits >> 6 & 0x3F] : '=';
+            out[o] = '=';
+        }
+        return new String(out);
+    }
+
+    /**
+     * @return
+     *  The decoded data.
+     *
+     * @throws IllegalArgumentException
+     *  If the text is not Base64.
+     */
+    public static byte[] decode(String text)
+    {
+        byte[] out = new byte[text.length() / 4 * 3 + 2];
+        int length = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < text.length(); ++i)
+        {
+            char c = text.charAt(i);
+            if (c == '=')
+            {
+                break;
+            }
+            int value = c < DECODE.length ? DECODE[c] : -1;
+            if (value < 0)
+            {
+                if (Character.isWhitespace(c))
+                {
+                    continue;
+                }
+                throw new IllegalArgumentException("Not Base64 at " + i);
+            }
+
+            bits = bits << 6 | value;
+            if (++count == 4)
+            {
+                out[length++] = (byte)(bits >> 16);
+                out[length++] = (byte)(bits >> 8);
+                out[length++] = (byte)bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        // A partial group holds one or two final bytes.
+        if (count == 1)
+        {
+            throw new IllegalArgumentException("Truncated Base64");
+        }
+        if (count == 2)
+        {
+            out[length++] = (byte)(bits >> 4);
+        }
+        else if (count == 3)
+        {
+            out[length++] = (byte)(bits >> 10);
+            out[length++] = (byte)(bits >> 2);
+        }
+        return length == out.length ? out : Arrays.copyOf(out, length);
+    }
+}
@@ -0,0 +1,189 @@
+package edu.calvin.equinox.magnumopus;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synchronize many tiles in one request.
+ *
+ * The client posts the version of every tile it holds:
+ *
+ *   {"tiles": [{"x": 0, "y": 256, "version": 3}, ...]}
+ *
+ * and the server answers with only the tiles that have newer versions, in
+ * the same form as a single tile response plus the tile's position:
+ *
+ *   {"tiles": [{"x": 0, "y": 256, "version": 5, "data": "..."}, ...]}
+ *
+ * A server without the endpoint answers 404, 405 or 501. The client then
+ * reports itself unsupported, and callers fall back to per-tile requests.
+ * Requests block, so they must be made off the UI thread.
+ */
+
+public class BatchSyncClient
+{
+    private final String m_url;
+
+    /**
+     * False once the server has shown it lacks the batch endpoint.
+     */
+    private volatile boolean m_isSupported;
+
+    /**
+     * Tiles to include in the next request.
+     */
+    private JSONArray m_pending;
+
+    /**
+     * @param url
+     *  Batch sync endpoint of the canvas.
+     */
+    public BatchSyncClient(String url)
+    {
+        m_url = url;
+        m_isSupported = true;
+        m_pending = new JSONArray();
+    }
+
+    /**
+     * @return
+     *  The batch sync endpoint.
+     */
+    public String getUrl()
+    {
+        return m_url;
+    }
+
+    /**
+     * @return
+     *  False if the server does not support batched syncs.
+     */
+    public boolean isSupported()
+    {
+        return m_isSupported;
+    }
+
+    /**
+     * Add a tile to the next request.
+     *
+     * @param x, y
+     *  Position of the tile on the canvas.
+     * @param version
+     *  Version of the tile held locally.
+     */
+    public void add(int x, int y, int version)
+    {
+        try
+        {
+            JSONObject tile = new JSONObject();
+            tile.put("x", x);
+            tile.put("y", y);
+            tile.put("version", version);
+            m_pending.put(tile);
+        } catch (JSONException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return
+     *  Number of tiles waiting for the next request.
+     */
+    public int getPendingCount()
+    {
+        return m_pending.length();
+    }
+
+    /**
+     * Build the body of the next request and clear the pending tiles.
+     */
+    public String takeRequest()
+    {
+        String body = "{\"tiles\":" + m_pending.toString() + "}";
+        m_pending = new JSONArray();
+        return body;
+    }
+
+    /**
+     * Send a batched request built by takeRequest().
+     *
+     * @param body
+     *  Request body.
+     *
+     * @return
+     *  Entries of the tiles that changed, or null if the request failed or
+     *  the server does not support batching.
+     */
+    @Nullable
+    public List<JSONObject> sync(String body)
+    {
+        try
+        {
+            HttpURLConnection conn = Http.openPost(m_url, "application/json; charset=utf8");
+            Http.writeString(conn, body);
+
+            int status = conn.getResponseCode();
+            List<JSONObject> output = null;
+            if (status == HttpURLConnection.HTTP_OK)
+            {
+                output = readResponse(conn);
+            }
+            else if (status == HttpURLConnection.HTTP_NO_CONTENT)
+            {
+                // Nothing changed.
+                output = new ArrayList<>();
+                Http.discard(conn);
+            }
+            else if (   status == HttpURLConnection.HTTP_NOT_FOUND
+                     || status == HttpURLConnection.HTTP_BAD_METHOD
+                     || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED )
+            {
+                m_isSupported = false;
+                Http.discard(conn);
+            }
+            else
+            {
+                Metrics.SYNC_ERRORS.increment();
+                Log.e("BatchSyncClient", "HTTP error " + status);
+                Http.discard(conn);
+            }
+            return output;
+
+        } catch (IOException e)
+        {
+            Metrics.SYNC_ERRORS.increment();
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    @Nullable
+    private static List<JSONObject> readResponse(HttpURLConnection conn) throws IOException
+    {
+        String result = Http.readString(conn);
+        try
+        {
+            JSONArray tiles = new JSONObject(result).getJSONArray("tiles");
+            List<JSONObject> output = new ArrayList<>(tiles.length());
+            for (int i = 0; i < tiles.length(); ++i)
+            {
+                output.add(tiles.getJSONObject(i));
+            }
+            return output;
+        } catch (JSONException e)
+        {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,197 @@
+package edu.calvin.equinox.magnumopus;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+
+/**
+ * Size bounded pool of mutable ARGB_8888 bitmaps for tile layers.
+ *
+ * Tiles borrow their layers from the pool and hand them back when they are
+ * unloaded, so panning reuses memory instead of churning the heap. All
+ * methods are thread safe.
+ */
+
+public enum BitmapPool
+{
+    INSTANCE;
+
+    /**
+     * Most memory the pool may hold on to.
+     */
+    private static final long MAX_POOL_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+    private final ArrayList<Bitmap> m_pool = new ArrayList<>();
+    private long m_pooledBytes = 0;
+
+    // Statistics.
+    private int m_hits = 0;
+    private int m_misses = 0;
+    private int m_decodeReuses = 0;
+
+    /**
+     * Borrow a cleared bitmap.
+     *
+     * @return
+     *  A transparent mutable bitmap of the requested size.
+     */
+    public Bitmap acquire(int width, int height)
+    {
+        Bitmap bitmap = take(width, height);
+        if (bitmap != null)
+        {
+            return bitmap;
+        }
+        synchronized (this)
+        {
+            ++m_misses;
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Return a bitmap to the pool. The caller must not use it afterwards.
+     *
+     * @param bitmap
+     *  Bitmap to return; may be null.
+     */
+    public void release(@Nullable Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled())
+        {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888)
+        {
+            bitmap.recycle();
+            return;
+        }
+
+        bitmap.eraseColor(Color.TRANSPARENT);
+        synchronized (this)
+        {
+            if (m_pooledBytes + bitmap.getByteCount() <= MAX_POOL_BYTES)
+            {
+                m_pool.add(bitmap);
+                m_pooledBytes += bitmap.getByteCount();
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Decode an image, reusing a pooled bitmap's memory if one fits.
+     *
+     * @param data
+     *  Encoded image.
+     *
+     * @return
+     *  A mutable bitmap, or null if data could not be decoded.
+     */
+    @Nullable
+    public Bitmap decode(byte[] data)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+        {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inSampleSize = 1;
+        options.inBitmap = take(options.outWidth, options.outHeight);
+        if (options.inBitmap != null)
+        {
+            try
+            {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                if (bitmap != null)
+                {
+                    synchronized (this)
+                    {
+                        ++m_decodeReuses;
+                    }
+                    return bitmap;
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Image format cannot decode into an existing bitmap.
+            }
+            release(options.inBitmap);
+            options.inBitmap = null;
+        }
+
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * Free every pooled bitmap, e.g. when memory runs low.
+     */
+    public synchronized void trim()
+    {
+        for (Bitmap bitmap : m_pool)
+        {
+            bitmap.recycle();
+        }
+        m_pool.clear();
+        m_pooledBytes = 0;
+    }
+
+    /**
+     * @return
+     *  Number of acquires served from the pool.
+     */
+    public synchronized int getHits()
+    {
+        return m_hits;
+    }
+
+    /**
+     * @return
+     *  Number of acquires that had to allocate.
+     */
+    public synchronized int getMisses()
+    {
+        return m_misses;
+    }
+
+    /**
+     * @return
+     *  Number of decodes into a pooled bitmap.
+     */
+    public synchronized int getDecodeReuses()
+    {
+        return m_decodeReuses;
+    }
+
+    /**
+     * Remove a pooled bitmap of the given size.
+     *
+     * @return
+     *  The bitmap, or null if none is pooled.
+     */
+    @Nullable
+    private synchronized Bitmap take(int width, int height)
+    {
+        for (int i = m_pool.size() - 1; i >= 0; --i)
+        {
+            Bitmap bitmap = m_pool.get(i);
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height)
+            {
+                m_pool.remove(i);
+                m_pooledBytes -= bitmap.getByteCount();
+                ++m_hits;
+                return bitmap;
+            }
+        }
+        return null;
+    }
+}
@@ -10,13 +10,24 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-public enum Cache
+public enum Cache implements CacheWriter.Store
 {
     INSTANCE;
 
-    private static final int CACHE_VERSION = 1;
+    /**
+     * Version of the entry format. Entries written by other versions are
+     * discarded when the cache opens.
+     *
+     * 1: JPEG of the composite on white.
+     * 2: TileFrame of the lossless synced layer and its version.
+     */
+    private static final int CACHE_VERSION = 2;
     private DiskLruCache m_lruCache = null;
 
+    // Statistics.
+    private int m_hits = 0;
+    private int m_misses = 0;
+
     public void init(File dir)
     {
         if (m_lruCache != null)
@@ -30,7 +41,7 @@ public enum Cache
                     dir,
                     CACHE_VERSION,
                     1,
-                    1024 * 1024 // 1 MB
+                    32 * 1024 * 1024 // 32 MB
             );
         } catch (IOException e)
         {
@@ -38,6 +49,7 @@ public enum Cache
         }
     }
 
+    @Override
     @Nullable
     public byte[] get(String key)
     {
@@ -47,6 +59,7 @@ public enum Cache
         }
 
         byte[] value = null;
+        long start = System.nanoTime();
         try
         {
             DiskLruCache.Snapshot snapshot = m_lruCache.get(key);
@@ -66,9 +79,40 @@ public enum Cache
         {
             e.printStackTrace();
         }
+        Metrics.CACHE_GET.recordSince(start);
+        synchronized (this)
+        {
+            if (value != null)
+            {
+                ++m_hits;
+            }
+            else
+            {
+                ++m_misses;
+            }
+        }
         return value;
     }
 
+    /**
+     * @return
+     *  Number of gets that found their entry.
+     */
+    public synchronized int getHits()
+    {
+        return m_hits;
+    }
+
+    /**
+     * @return
+     *  Number of gets that did not.
+     */
+    public synchronized int getMisses()
+    {
+        return m_misses;
+    }
+
+    @Override
     public void put(String key, byte[] value)
     {
         if (m_lruCache == null)
@@ -76,6 +120,7 @@ public enum Cache
             return;
         }
 
+        long start = System.nanoTime();
         try
         {
             DiskLruCache.Editor editor = m_lruCache.edit(key);
@@ -90,5 +135,25 @@ public enum Cache
         {
             e.printStackTrace();
         }
+        Metrics.CACHE_PUT.recordSince(start);
+    }
+
+    /**
+     * Drop an entry, if there is one.
+     */
+    public void remove(String key)
+    {
+        if (m_lruCache == null)
+        {
+            return;
+        }
+
+        try
+        {
+            m_lruCache.remove(key);
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
     }
 }
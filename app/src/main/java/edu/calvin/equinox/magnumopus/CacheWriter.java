@@ -0,0 +1,302 @@
+package edu.calvin.equinox.magnumopus;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes cache entries on a background thread.
+ *
+ * Callers hand over a cheap snapshot, and the writer thread does the slow
+ * part: encoding it and committing it to the store. A newer write for a key
+ * replaces one still waiting, so a tile saved repeatedly is only encoded
+ * once. The queue is bounded; when it is full the oldest waiting write is
+ * dropped, since the cache is only a head start for syncing. The thread
+ * exits when idle and starts again on the next write. A key stays in
+ * flight from leaving the queue until committed, and read() waits for it,
+ * so a reader never sees the store from before a write it missed.
+ *
+ * @param <E>
+ *  Type of the snapshots.
+ */
+
+public class CacheWriter<E extends CacheWriter.Entry>
+{
+    /**
+     * A snapshot waiting to be written.
+     */
+    public interface Entry
+    {
+        /**
+         * Encode the snapshot. Called on the writer thread.
+         *
+         * @return
+         *  The bytes to store.
+         */
+        byte[] encode();
+
+        /**
+         * Free the snapshot. Called once it has been written or dropped.
+         */
+        void discard();
+    }
+
+    /**
+     * Where entries are written.
+     */
+    public interface Store
+    {
+        void put(String key, byte[] value);
+
+        @Nullable
+        byte[] get(String key);
+    }
+
+    /**
+     * How long the thread waits for more work before exiting.
+     */
+    private static final long IDLE_MS = 5000;
+
+    private final Store m_store;
+    private final int m_maxPending;
+
+    /**
+     * Waiting writes, oldest first.
+     */
+    private final LinkedHashMap<String, E> m_pending;
+    /**
+     * Keys taken off the queue and not yet committed.
+     */
+    private final Set<String> m_inFlight;
+    private Thread m_thread;
+
+    // Statistics.
+    private int m_written;
+    private int m_coalesced;
+    private int m_dropped;
+
+    /**
+     * @param store
+     *  Where entries are written.
+     * @param maxPending
+     *  Most writes that may wait at once.
+     */
+    public CacheWriter(Store store, int maxPending)
+    {
+        m_store = store;
+        m_maxPending = maxPending;
+        m_pending = new LinkedHashMap<>();
+        m_inFlight = new HashSet<>();
+    }
+
+    /**
+     * Queue a write. Takes ownership of the entry.
+     */
+    public synchronized void write(String key, E entry)
+    {
+        // Remove first, so a rewritten key moves to the back of the queue.
+        E old = m_pending.remove(key);
+        if (old != null)
+        {
+            old.discard();
+            ++m_coalesced;
+        }
+        else if (m_pending.size() >= m_maxPending)
+        {
+            Iterator<Map.Entry<String, E>> it = m_pending.entrySet().iterator();
+            E oldest = it.next().getValue();
+            it.remove();
+            oldest.discard();
+            ++m_dropped;
+        }
+        m_pending.put(key, entry);
+
+        if (m_thread == null)
+        {
+            m_thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    drain();
+                }
+            }, "CacheWriter");
+            m_thread.setDaemon(true);
+            m_thread.setPriority(Thread.MIN_PRIORITY);
+            m_thread.start();
+        }
+        else
+        {
+            // Readers wait on this too.
+            notifyAll();
+        }
+    }
+
+    /**
+     * Take back a write that has not started, e.g. because the tile is
+     * needed again before it reached the store. Never waits; if the key is
+     * being written, read it with read(), which waits for the commit.
+     *
+     * @return
+     *  The entry, now owned by the caller, or null if none is waiting.
+     */
+    @Nullable
+    public synchronized E take(String key)
+    {
+        return m_pending.remove(key);
+    }
+
+    /**
+     * Read an entry from the store, so readers off the UI thread see the
+     * latest snapshot: waits for the key if it is being written, and writes
+     * it first if it is waiting.
+     *
+     * @return
+     *  The stored bytes, or null if there are none.
+     */
+    @Nullable
+    public byte[] read(String key)
+    {
+        E entry;
+        synchronized (this)
+        {
+            while (m_inFlight.contains(key))
+            {
+                try
+                {
+                    wait();
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            entry = m_pending.remove(key);
+            if (entry != null)
+            {
+                m_inFlight.add(key);
+            }
+        }
+        if (entry == null)
+        {
+            return m_store.get(key);
+        }
+
+        try
+        {
+            byte[] value = entry.encode();
+            m_store.put(key, value);
+            synchronized (this)
+            {
+                ++m_written;
+            }
+            return value;
+        } finally
+        {
+            entry.discard();
+            finishWrite(key);
+        }
+    }
+
+    /**
+     * Mark a key committed, and wake readers waiting for it.
+     */
+    private synchronized void finishWrite(String key)
+    {
+        m_inFlight.remove(key);
+        notifyAll();
+    }
+
+    /**
+     * @return
+     *  Number of writes waiting.
+     */
+    public synchronized int getPendingCount()
+    {
+        return m_pending.size();
+    }
+
+    /**
+     * @return
+     *  Number of entries written to the store.
+     */
+    public synchronized int getWrittenCount()
+    {
+        return m_written;
+    }
+
+    /**
+     * @return
+     *  Number of waiting writes replaced by newer ones.
+     */
+    public synchronized int getCoalescedCount()
+    {
+        return m_coalesced;
+    }
+
+    /**
+     * @return
+     *  Number of waiting writes dropped because the queue was full.
+     */
+    public synchronized int getDroppedCount()
+    {
+        return m_dropped;
+    }
+
+    /**
+     * Write entries until there are none left for a while.
+     */
+    private void drain()
+    {
+        while (true)
+        {
+            String key;
+            E entry;
+            synchronized (this)
+            {
+                if (m_pending.isEmpty())
+                {
+                    try
+                    {
+                        wait(IDLE_MS);
+                    } catch (InterruptedException e)
+                    {
+                        // Exit below.
+                    }
+                    if (m_pending.isEmpty())
+                    {
+                        m_thread = null;
+                        return;
+                    }
+                }
+                Iterator<Map.Entry<String, E>> it = m_pending.entrySet().iterator();
+                Map.Entry<String, E> next = it.next();
+                it.remove();
+                key = next.getKey();
+                entry = next.getValue();
+                m_inFlight.add(key);
+            }
+
+            try
+            {
+                m_store.put(key, entry.encode());
+                synchronized (this)
+                {
+                    ++m_written;
+                }
+            } catch (RuntimeException e)
+            {
+                Log.e("CacheWriter", "Cache write failed", e);
+            } finally
+            {
+                entry.discard();
+                finishWrite(key);
+            }
+        }
+    }
+}
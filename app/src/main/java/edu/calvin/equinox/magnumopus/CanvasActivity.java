@@ -16,12 +16,29 @@ import com.flask.colorpicker.OnColorSelectedListener;
 import com.flask.colorpicker.builder.ColorPickerClickListener;
 import com.flask.colorpicker.builder.ColorPickerDialogBuilder;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Activity for drawing on the canvas.
  */
 
 public class CanvasActivity extends AppCompatActivity implements AdapterView.OnItemSelectedListener
 {
+    /**
+     * Developer setting, read by debug builds only: how tiles are drawn,
+     * TilingCanvasView.RENDER_COMPOSITE (0, the default) or RENDER_PICTURE
+     * (1). Set it when launching the activity, e.g.
+     *
+     *   adb shell am start -n edu.calvin.equinox.magnumopus/.CanvasActivity \
+     *       --ei EXTRA_CANVAS_ID 1 --ei EXTRA_RENDER_MODE 1
+     *
+     * and compare the draw times in the metrics overlay. Pictures are
+     * recorded again whenever a tile changes, which while drawing is every
+     * stroke segment, so the mode is not for users.
+     */
+    public static final String EXTRA_RENDER_MODE = "EXTRA_RENDER_MODE";
+
     private Spinner m_brushSpinner;
     private String m_brushType;
     private int m_canvasID;
@@ -49,7 +66,51 @@ public class CanvasActivity extends AppCompatActivity implements AdapterView.OnI
         TilingCanvasView theCanvas = (TilingCanvasView)findViewById(R.id.canvas_view);
         theCanvas.setCanvasId(m_canvasID);
         m_selectedColor = Color.BLUE;
-        
+
+        findViewById(R.id.toggle_nav_btn).setOnLongClickListener(new View.OnLongClickListener()
+        {
+            @Override
+            public boolean onLongClick(View view)
+            {
+                toggleMetrics();
+                return true;
+            }
+        });
+
+        if (BuildConfig.DEBUG)
+        {
+            theCanvas.setRenderMode(
+                    getIntent().getIntExtra(EXTRA_RENDER_MODE, TilingCanvasView.RENDER_COMPOSITE)
+            );
+        }
+    }
+
+    /**
+     * Show the debug overlay, or hide it and save the metrics to a file.
+     * Bound to a long press of the navigation button.
+     */
+    private void toggleMetrics()
+    {
+        TilingCanvasView theCanvas = (TilingCanvasView)findViewById(R.id.canvas_view);
+        if (theCanvas.toggleMetrics())
+        {
+            return;
+        }
+
+        File dir = getExternalFilesDir(null);
+        if (dir == null)
+        {
+            dir = getFilesDir();
+        }
+        try
+        {
+            File file = Metrics.dumpToFile(dir);
+            Toast.makeText(this, "Metrics saved to " + file.getPath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e)
+        {
+            Log.e("CanvasActivity", "Could not save metrics", e);
+            Toast.makeText(this, "Could not save metrics", Toast.LENGTH_SHORT).show();
+        }
     }
 
     /**
@@ -0,0 +1,214 @@
+package edu.calvin.equinox.magnumopus;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared setup for requests to the canvas server.
+ *
+ * Every request gets the same timeouts and asks for gzip. Connections are
+ * kept alive and pooled by HttpURLConnection, which only reuses a socket
+ * once its response body has been read to the end and closed, and never
+ * after disconnect(). So callers read bodies with readString() or
+ * getInputStream() and close them, call discard() when they do not want
+ * the body, and only disconnect() to abort a request.
+ *
+ * Tiles are tagged by version: a request carrying If-None-Match with
+ * versionTag() is answered 304 Not Modified if the tile has not changed.
+ */
+
+public final class Http
+{
+    /**
+     * Time allowed to open a connection.
+     */
+    public static final int CONNECT_TIMEOUT_MS = 10000;
+    /**
+     * Time allowed between bytes of a response.
+     */
+    public static final int READ_TIMEOUT_MS = 10000;
+    /**
+     * Idle connections kept open per host, enough for every sync worker.
+     */
+    public static final int MAX_IDLE_CONNECTIONS = 8;
+
+    /**
+     * Most bytes of an unwanted body read so its connection can be reused.
+     * Longer bodies are cheaper to drop with the connection.
+     */
+    private static final int MAX_DISCARD = 64 * 1024;
+
+    static
+    {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    }
+
+    private Http()
+    {
+    }
+
+    /**
+     * Open a GET request.
+     *
+     * @param url
+     *  URL to request.
+     *
+     * @return
+     *  The unconnected request, for further setup.
+     */
+    public static HttpURLConnection open(String url) throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        // Asking explicitly means we decode it ourselves, the same on every
+        // platform.
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        return conn;
+    }
+
+    /**
+     * Open a POST request with a body.
+     *
+     * @param url
+     *  URL to post to.
+     * @param contentType
+     *  Content type of the body.
+     */
+    public static HttpURLConnection openPost(String url, String contentType) throws IOException
+    {
+        HttpURLConnection conn = open(url);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", contentType);
+        return conn;
+    }
+
+    /**
+     * @return
+     *  Entity tag of a tile with the given version.
+     */
+    public static String versionTag(int version)
+    {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * Only fetch the tile if it has changed from the given version.
+     */
+    public static void setIfNoneMatch(HttpURLConnection conn, int version)
+    {
+        conn.setRequestProperty("If-None-Match", versionTag(version));
+    }
+
+    /**
+     * @return
+     *  The response body, decompressed if needed.
+     */
+    public static InputStream getInputStream(HttpURLConnection conn) throws IOException
+    {
+        InputStream is = conn.getInputStream();
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding()))
+        {
+            return new GZIPInputStream(is);
+        }
+        return is;
+    }
+
+    /**
+     * @return
+     *  Length of the decompressed response body, or -1 if unknown.
+     */
+    public static int getContentLength(HttpURLConnection conn)
+    {
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding()))
+        {
+            return -1;
+        }
+        return conn.getContentLength();
+    }
+
+    /**
+     * Read the whole response body as UTF-8 text and close it.
+     */
+    public static String readString(HttpURLConnection conn) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(getInputStream(conn), "UTF-8")
+        );
+        StringBuilder result = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            result.append(line);
+        }
+        reader.close();
+        return result.toString();
+    }
+
+    /**
+     * Write a request body as UTF-8 text.
+     */
+    public static void writeString(HttpURLConnection conn, String body) throws IOException
+    {
+        OutputStream os = conn.getOutputStream();
+        BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(os, "UTF-8")
+        );
+        writer.write(body);
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * Drop a response whose body is not needed, returning the connection
+     * to the pool when the body is short.
+     *
+     * @param conn
+     *  A request that has been sent; may be null.
+     */
+    public static void discard(@Nullable HttpURLConnection conn)
+    {
+        if (conn == null)
+        {
+            return;
+        }
+        try
+        {
+            InputStream is = conn.getResponseCode() >= 400
+                    ? conn.getErrorStream()
+                    : conn.getInputStream();
+            if (is == null)
+            {
+                return;
+            }
+            byte[] chunk = new byte[4096];
+            int total = 0;
+            int n;
+            while ((n = is.read(chunk)) > 0)
+            {
+                total += n;
+                if (total > MAX_DISCARD)
+                {
+                    conn.disconnect();
+                    return;
+                }
+            }
+            is.close();
+        } catch (IOException e)
+        {
+            conn.disconnect();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package edu.calvin.equinox.magnumopus;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Executor;
+
+/**
+ * Long poll connection over which the server announces changed tiles.
+ *
+ * The channel repeatedly requests
+ *
+ *   {url}?since={cursor}
+ *
+ * and the server holds the request open until some tile changes, then
+ * answers with
+ *
+ *   {"cursor": 42, "tiles": [{"canvas": 1, "x": 0, "y": 256, "version": 5}, ...]}
+ *
+ * or with 204 if nothing changed before its timeout. Failed requests are
+ * retried with exponential backoff. A 404 means the server has no channel,
+ * and the channel stops for good. Events are delivered on the given
+ * executor, normally the UI thread.
+ */
+
+public class InvalidationChannel implements Runnable
+{
+    /**
+     * Receives announcements from the channel.
+     */
+    public interface Listener
+    {
+        /**
+         * A tile has a new version on the server.
+         */
+        void onTileChanged(int canvasID, int x, int y, int version);
+
+        /**
+         * The channel connected or lost its connection. Callers should poll
+         * while it is disconnected.
+         */
+        void onChannelStateChanged(boolean isConnected);
+    }
+
+    // Retry delays after failed requests.
+    static final long MIN_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 60000;
+
+    /**
+     * How long the server may hold a request, plus slack.
+     */
+    private static final int READ_TIMEOUT_MS = 60000;
+
+    private final String m_url;
+    private final Listener m_listener;
+    private final Executor m_deliver;
+
+    private volatile boolean m_isRunning;
+    private volatile boolean m_isConnected;
+    private volatile HttpURLConnection m_conn;
+    private Thread m_thread;
+
+    /**
+     * Position in the server's change log.
+     */
+    private long m_cursor;
+
+    public InvalidationChannel(String url, Listener listener, Executor deliver)
+    {
+        m_url = url;
+        m_listener = listener;
+        m_deliver = deliver;
+        m_cursor = -1;
+    }
+
+    /**
+     * Start listening on a background thread.
+     */
+    public synchronized void start()
+    {
+        if (m_thread != null)
+        {
+            return;
+        }
+        m_isRunning = true;
+        m_thread = new Thread(this, "InvalidationChannel");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    /**
+     * Stop listening. The channel cannot be restarted.
+     */
+    public synchronized void stop()
+    {
+        m_isRunning = false;
+        if (m_thread != null)
+        {
+            m_thread.interrupt();
+        }
+        HttpURLConnection conn = m_conn;
+        if (conn != null)
+        {
+            // Unblock a pending read.
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * @return
+     *  False once stopped, or once the server has shown it has no channel.
+     */
+    public boolean isRunning()
+    {
+        return m_isRunning;
+    }
+
+    /**
+     * @return
+     *  True if the last request to the server succeeded.
+     */
+    public boolean isConnected()
+    {
+        return m_isConnected;
+    }
+
+    @Override
+    public void run()
+    {
+        long backoff = MIN_BACKOFF_MS;
+        while (m_isRunning)
+        {
+            int status = poll();
+            if (!m_isRunning)
+            {
+                // Stopped mid request.
+                break;
+            }
+            if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_NO_CONTENT)
+            {
+                setConnected(true);
+                backoff = MIN_BACKOFF_MS;
+                continue;
+            }
+
+            setConnected(false);
+            if (status == HttpURLConnection.HTTP_NOT_FOUND)
+            {
+                m_isRunning = false;
+                Log.w("InvalidationChannel", "Server has no invalidation channel");
+                break;
+            }
+
+            try
+            {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e)
+            {
+                break;
+            }
+            backoff = nextBackoff(backoff);
+        }
+    }
+
+    /**
+     * @return
+     *  The delay to wait after another failure.
+     */
+    static long nextBackoff(long backoff)
+    {
+        return Math.min(backoff * 2, MAX_BACKOFF_MS);
+    }
+
+    /**
+     * Make one long poll request.
+     *
+     * @return
+     *  The HTTP status, or -1 if the request failed.
+     */
+    private int poll()
+    {
+        String url = m_cursor < 0 ? m_url : m_url + "?since=" + m_cursor;
+        HttpURLConnection conn = null;
+        try
+        {
+            conn = Http.open(url);
+            m_conn = conn;
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+
+            int status = conn.getResponseCode();
+            if (status == HttpURLConnection.HTTP_OK)
+            {
+                if (!dispatch(new JSONObject(Http.readString(conn))))
+                {
+                    return -1;
+                }
+            }
+            else
+            {
+                Http.discard(conn);
+            }
+            return status;
+
+        } catch (IOException | JSONException e)
+        {
+            if (m_isRunning)
+            {
+                Log.w("InvalidationChannel", "Poll failed", e);
+            }
+            if (conn != null)
+            {
+                conn.disconnect();
+            }
+            return -1;
+        } finally
+        {
+            m_conn = null;
+        }
+    }
+
+    /**
+     * Hand the announced tiles to the listener.
+     *
+     * @return
+     *  False if the response was malformed.
+     */
+    private boolean dispatch(JSONObject response) throws JSONException
+    {
+        m_cursor = response.optLong("cursor", m_cursor);
+        JSONArray tiles = response.optJSONArray("tiles");
+        if (tiles == null)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < tiles.length(); ++i)
+        {
+            JSONObject tile = tiles.getJSONObject(i);
+            final int canvasID = tile.getInt("canvas");
+            final int x = tile.getInt("x");
+            final int y = tile.getInt("y");
+            final int version = tile.getInt("version");
+            m_deliver.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    m_listener.onTileChanged(canvasID, x, y, version);
+                }
+            });
+        }
+        return true;
+    }
+
+    private void setConnected(final boolean isConnected)
+    {
+        if (m_isConnected == isConnected)
+        {
+            return;
+        }
+        m_isConnected = isConnected;
+        m_deliver.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                m_listener.onChannelStateChanged(isConnected);
+            }
+        });
+    }
+}
@@ -15,12 +15,8 @@ import android.widget.Toast;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 
 /**
  * MainActivity()
@@ -65,40 +61,19 @@ public class MainActivity extends AppCompatActivity
         {
             theUrl = params[0];
 
-            URL apiURL;
-            try
-            {
-                apiURL = new URL(theUrl);
-            } catch (MalformedURLException e)
-            {
-                e.printStackTrace();
-                return null;
-            }
-
             JSONObject output = null;
 
             try{
-                HttpURLConnection conn = (HttpURLConnection)apiURL.openConnection();
+                HttpURLConnection conn = Http.open(theUrl);
                 conn.setRequestMethod("GET");
-                conn.setConnectTimeout(10000); // 10 sec
-                conn.setReadTimeout(10000);    // 10 sec
                 conn.setRequestProperty("Content-Type", "application/json; charset=utf8");
 
                 if (conn.getResponseCode() == HttpURLConnection.HTTP_OK)
                 {
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream())
-                    );
-                    StringBuilder result = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null)
-                    {
-                        result.append(line);
-                    }
-
+                    String result = Http.readString(conn);
                     try
                     {
-                        output = new JSONObject(result.toString());
+                        output = new JSONObject(result);
                     } catch (JSONException e)
                     {
                         e.printStackTrace();
@@ -107,8 +82,8 @@ public class MainActivity extends AppCompatActivity
                 else
                 {
                     Log.e("GetSearchCanvas", "HTTP error " + conn.getResponseCode());
+                    Http.discard(conn);
                 }
-                conn.disconnect();
 
             } catch (IOException e)
             {
@@ -0,0 +1,183 @@
+package edu.calvin.equinox.magnumopus;
+
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of decoded values, bounded by their size in
+ * bytes.
+ *
+ * Sits in front of the disk Cache: unloaded tiles are parked here with
+ * their layers intact, so panning back to them needs neither a disk read
+ * nor a decode. Values are taken out when they are used again, so each is
+ * owned by either the cache or its user, never both. Values pushed out by
+ * newer ones are handed to the Evictor, which is where their memory goes
+ * back to the BitmapPool. Not thread safe; use from the UI thread.
+ *
+ * @param <V>
+ *  Type of the cached values.
+ */
+
+public class MemoryCache<V>
+{
+    /**
+     * Measures and disposes of cached values.
+     */
+    public interface Evictor<V>
+    {
+        /**
+         * @return
+         *  Bytes of memory the value holds. Measured once, when it is put.
+         */
+        long sizeOf(V value);
+
+        /**
+         * The value was pushed out of the cache. It now belongs to the
+         * evictor.
+         */
+        void onEvicted(String key, V value);
+    }
+
+    private final long m_maxBytes;
+    private final Evictor<V> m_evictor;
+    private final LinkedHashMap<String, Entry<V>> m_entries;
+    private long m_bytes;
+
+    // Statistics.
+    private int m_hits;
+    private int m_misses;
+    private int m_evictions;
+
+    /**
+     * @param maxBytes
+     *  Most memory the cached values may hold.
+     * @param evictor
+     *  Receives values pushed out of the cache.
+     */
+    public MemoryCache(long maxBytes, Evictor<V> evictor)
+    {
+        m_maxBytes = maxBytes;
+        m_evictor = evictor;
+        // Access order, so iteration starts at the least recently used.
+        m_entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Add a value, evicting older ones as needed to fit. A value larger
+     * than the whole cache is evicted straight away.
+     */
+    public void put(String key, V value)
+    {
+        Entry<V> entry = new Entry<>(value, m_evictor.sizeOf(value));
+        Entry<V> old = m_entries.put(key, entry);
+        if (old != null)
+        {
+            m_bytes -= old.size;
+            m_evictor.onEvicted(key, old.value);
+        }
+        m_bytes += entry.size;
+        trimTo(m_maxBytes);
+    }
+
+    /**
+     * Take a value out of the cache.
+     *
+     * @return
+     *  The value, now owned by the caller, or null if it is not cached.
+     */
+    @Nullable
+    public V take(String key)
+    {
+        Entry<V> entry = m_entries.remove(key);
+        if (entry == null)
+        {
+            ++m_misses;
+            return null;
+        }
+        ++m_hits;
+        m_bytes -= entry.size;
+        return entry.value;
+    }
+
+    /**
+     * Evict every value.
+     */
+    public void evictAll()
+    {
+        // Below any size, so even empty values go.
+        trimTo(-1);
+    }
+
+    /**
+     * @return
+     *  Number of cached values.
+     */
+    public int size()
+    {
+        return m_entries.size();
+    }
+
+    /**
+     * @return
+     *  Bytes held by the cached values.
+     */
+    public long getBytes()
+    {
+        return m_bytes;
+    }
+
+    /**
+     * @return
+     *  Number of takes that found their value.
+     */
+    public int getHits()
+    {
+        return m_hits;
+    }
+
+    /**
+     * @return
+     *  Number of takes that did not.
+     */
+    public int getMisses()
+    {
+        return m_misses;
+    }
+
+    /**
+     * @return
+     *  Number of values pushed out of the cache.
+     */
+    public int getEvictions()
+    {
+        return m_evictions;
+    }
+
+    private void trimTo(long maxBytes)
+    {
+        Iterator<Map.Entry<String, Entry<V>>> it = m_entries.entrySet().iterator();
+        while (m_bytes > maxBytes && it.hasNext())
+        {
+            Map.Entry<String, Entry<V>> eldest = it.next();
+            it.remove();
+            m_bytes -= eldest.getValue().size;
+            ++m_evictions;
+            m_evictor.onEvicted(eldest.getKey(), eldest.getValue().value);
+        }
+    }
+
+    private static final class Entry<V>
+    {
+        final V value;
+        final long size;
+
+        Entry(V value, long size)
+        {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package edu.calvin.equinox.magnumopus;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counts from the hot paths, for checking the app against its
+ * targets: 300 ms for the UI to respond, and 2 s for an edit to sync.
+ *
+ * Every metric is created up front, and recording only updates atomics, so
+ * it is cheap enough for every frame and never allocates. Times are
+ * recorded in microseconds into fixed buckets, so percentiles are only as
+ * precise as the bucket bounds.
+ */
+
+public final class Metrics
+{
+    /**
+     * Upper bounds of the histogram buckets, in microseconds. A last bucket
+     * holds everything slower.
+     */
+    static final long[] BOUNDS_US = {
+            250, 500, 1000, 2000, 4000, 8000, 16000, 33000, 66000,
+            125000, 300000, 500000, 1000000, 2000000, 5000000
+    };
+
+    /**
+     * Recording a frame in TilingCanvasView.onDraw().
+     */
+    public static final Histogram DRAW = new Histogram("draw");
+    /**
+     * Tile.getComposite().
+     */
+    public static final Histogram COMPOSITE = new Histogram("composite");
+    /**
+     * Painting one touch event with the brush.
+     */
+    public static final Histogram TOUCH_MOVE = new Histogram("touch_move");
+    /**
+     * TilingCanvasView.loadTiles().
+     */
+    public static final Histogram LOAD_TILES = new Histogram("load_tiles");
+    /**
+     * Disk cache reads and writes.
+     */
+    public static final Histogram CACHE_GET = new Histogram("cache_get");
+    public static final Histogram CACHE_PUT = new Histogram("cache_put");
+    /**
+     * One sync request, from sending it to reading the response.
+     */
+    public static final Histogram SYNC_ROUND_TRIP = new Histogram("sync_round_trip");
+    /**
+     * A tile sync, from being queued to the result being applied.
+     */
+    public static final Histogram SYNC_LATENCY = new Histogram("sync_latency");
+
+    /**
+     * Sync requests that failed.
+     */
+    public static final Counter SYNC_ERRORS = new Counter("sync_errors");
+    /**
+     * Tiles brought back from memory, and tiles read from disk.
+     */
+    public static final Counter MEMORY_LOADS = new Counter("memory_loads");
+    public static final Counter DISK_LOADS = new Counter("disk_loads");
+
+    private static final Histogram[] HISTOGRAMS = {
+            DRAW, COMPOSITE, TOUCH_MOVE, LOAD_TILES, CACHE_GET, CACHE_PUT,
+            SYNC_ROUND_TRIP, SYNC_LATENCY
+    };
+    private static final Counter[] COUNTERS = {
+            SYNC_ERRORS, MEMORY_LOADS, DISK_LOADS
+    };
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * A distribution of times.
+     */
+    public static final class Histogram
+    {
+        private final String m_name;
+        private final AtomicLongArray m_buckets;
+        private final AtomicLong m_count;
+        private final AtomicLong m_sum;
+        private final AtomicLong m_max;
+        private final AtomicLong m_last;
+
+        Histogram(String name)
+        {
+            m_name = name;
+            m_buckets = new AtomicLongArray(BOUNDS_US.length + 1);
+            m_count = new AtomicLong();
+            m_sum = new AtomicLong();
+            m_max = new AtomicLong();
+            m_last = new AtomicLong();
+        }
+
+        public String getName()
+        {
+            return m_name;
+        }
+
+        /**
+         * @param micros
+         *  Time taken, in microseconds.
+         */
+        public void record(long micros)
+        {
+            int bucket = 0;
+            while (bucket < BOUNDS_US.length && micros > BOUNDS_US[bucket])
+            {
+                ++bucket;
+            }
+            m_buckets.incrementAndGet(bucket);
+            m_count.incrementAndGet();
+            m_sum.addAndGet(micros);
+            m_last.set(micros);
+
+            long max = m_max.get();
+            while (micros > max && !m_max.compareAndSet(max, micros))
+            {
+                max = m_max.get();
+            }
+        }
+
+        /**
+         * Record the time since a start time.
+         *
+         * @param startNanos
+         *  System.nanoTime() at the start.
+         */
+        public void recordSince(long startNanos)
+        {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public long getCount()
+        {
+            return m_count.get();
+        }
+
+        /**
+         * @return
+         *  The most recent time, in microseconds.
+         */
+        public long getLastMicros()
+        {
+            return m_last.get();
+        }
+
+        public long getMeanMicros()
+        {
+            long count = m_count.get();
+            return count == 0 ? 0 : m_sum.get() / count;
+        }
+
+        public long getMaxMicros()
+        {
+            return m_max.get();
+        }
+
+        /**
+         * @param fraction
+         *  Percentile as a fraction, e.g. 0.95.
+         *
+         * @return
+         *  Upper bound of the bucket holding the percentile, in microseconds.
+         *  Past the last bound this is the maximum.
+         */
+        public long getPercentileMicros(double fraction)
+        {
+            long count = m_count.get();
+            if (count == 0)
+            {
+                return 0;
+            }
+            long rank = (long)Math.ceil(fraction * count);
+            long seen = 0;
+            for (int bucket = 0; bucket < BOUNDS_US.length; ++bucket)
+            {
+                seen += m_buckets.get(bucket);
+                if (seen >= rank)
+                {
+                    return Math.min(BOUNDS_US[bucket], m_max.get());
+                }
+            }
+            return m_max.get();
+        }
+
+        /**
+         * @return
+         *  Number of times recorded in a bucket. Bucket i holds times up to
+         *  BOUNDS_US[i]; the last holds the rest.
+         */
+        public long getBucketCount(int bucket)
+        {
+            return m_buckets.get(bucket);
+        }
+
+        public void reset()
+        {
+            for (int bucket = 0; bucket < m_buckets.length(); ++bucket)
+            {
+                m_buckets.set(bucket, 0);
+            }
+            m_count.set(0);
+            m_sum.set(0);
+            m_max.set(0);
+            m_last.set(0);
+        }
+    }
+
+    /**
+     * A count of events.
+     */
+    public static final class Counter
+    {
+        private final String m_name;
+        private final AtomicLong m_count;
+
+        Counter(String name)
+        {
+            m_name = name;
+            m_count = new AtomicLong();
+        }
+
+        public String getName()
+        {
+            return m_name;
+        }
+
+        public void increment()
+        {
+            m_count.incrementAndGet();
+        }
+
+        public long get()
+        {
+            return m_count.get();
+        }
+
+        public void reset()
+        {
+            m_count.set(0);
+        }
+    }
+
+    /**
+     * Clear every metric, e.g. to measure one session.
+     */
+    public static void reset()
+    {
+        for (Histogram histogram : HISTOGRAMS)
+        {
+            histogram.reset();
+        }
+        for (Counter counter : COUNTERS)
+        {
+            counter.reset();
+        }
+    }
+
+    /**
+     * Write every metric as text: a summary line per histogram followed by
+     * its non-empty buckets, then a line per counter.
+     */
+    public static void dump(Writer out) throws IOException
+    {
+        for (Histogram histogram : HISTOGRAMS)
+        {
+            out.write(histogram.getName()
+                    + " count=" + histogram.getCount()
+                    + " mean_us=" + histogram.getMeanMicros()
+                    + " p50_us=" + histogram.getPercentileMicros(0.5)
+                    + " p95_us=" + histogram.getPercentileMicros(0.95)
+                    + " p99_us=" + histogram.getPercentileMicros(0.99)
+                    + " max_us=" + histogram.getMaxMicros() + "\n");
+            for (int bucket = 0; bucket <= BOUNDS_US.length; ++bucket)
+            {
+                long count = histogram.getBucketCount(bucket);
+                if (count > 0)
+                {
+                    String bound = bucket < BOUNDS_US.length ? "<=" + BOUNDS_US[bucket] : ">" + BOUNDS_US[bucket - 1];
+                    out.write("  " + bound + " " + count + "\n");
+                }
+            }
+        }
+        for (Counter counter : COUNTERS)
+        {
+            out.write(counter.getName() + " " + counter.get() + "\n");
+        }
+    }
+
+    /**
+     * Dump every metric to a new file.
+     *
+     * @param dir
+     *  Directory to write in.
+     *
+     * @return
+     *  The file written.
+     */
+    public static File dumpToFile(File dir) throws IOException
+    {
+        File file = new File(dir, "metrics-" + System.currentTimeMillis() + ".txt");
+        Writer out = new FileWriter(file);
+        try
+        {
+            dump(out);
+        } finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,59 @@
+package edu.calvin.equinox.magnumopus;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Whether the server offers an endpoint that not every server has, such
+ * as proxies or level tiles.
+ *
+ * Only an answer about the endpoint as a whole, 405 or 501, turns it off;
+ * a 404 just means the server has nothing at that URL, e.g. for a tile
+ * nobody has drawn on. Even then it is asked again after RETRY_MS, so a
+ * server that gains the endpoint, or a passing misconfiguration, does not
+ * turn it off for the life of the process.
+ */
+
+public class OptionalEndpoint
+{
+    /**
+     * How long an endpoint stays off after the server turned it down.
+     */
+    public static final long RETRY_MS = 10 * 60 * 1000;
+
+    /**
+     * Time before which the endpoint is not asked, or 0.
+     */
+    private volatile long m_offUntil;
+
+    /**
+     * @param now
+     *  SystemClock.uptimeMillis().
+     *
+     * @return
+     *  True if the endpoint is worth asking.
+     */
+    public boolean isAvailable(long now)
+    {
+        long offUntil = m_offUntil;
+        return offUntil == 0 || now >= offUntil;
+    }
+
+    /**
+     * Note the status of a response from the endpoint.
+     *
+     * @param now
+     *  SystemClock.uptimeMillis().
+     */
+    public void onResponse(int status, long now)
+    {
+        if (   status == HttpURLConnection.HTTP_BAD_METHOD
+            || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED )
+        {
+            m_offUntil = now + RETRY_MS;
+        }
+        else if (status < 500)
+        {
+            m_offUntil = 0;
+        }
+    }
+}
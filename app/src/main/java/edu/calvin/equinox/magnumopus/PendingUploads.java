@@ -0,0 +1,110 @@
+package edu.calvin.equinox.magnumopus;
+
+/**
+ * Tiles that left the screen with edits not yet uploaded.
+ *
+ * Parked and cached tiles only keep their synced layer, so a tile with
+ * edits cannot be let go until the edits have reached the server. Such a
+ * tile is held here instead, and offered for upload again on every sync
+ * until it is done, e.g. if it was busy with a download when it left.
+ *
+ * @param <T>
+ *  Type of the tiles.
+ */
+
+public class PendingUploads<T>
+{
+    /**
+     * What to do with held tiles.
+     */
+    public interface Owner<T>
+    {
+        /**
+         * @return
+         *  True if the tile has edits that are not uploaded yet.
+         */
+        boolean isDirty(T tile);
+
+        /**
+         * Start uploading the tile's edits. May do nothing if the tile is
+         * busy; it is offered again on the next flush().
+         */
+        void upload(int col, int row, T tile);
+
+        /**
+         * The tile has no edits left to upload; let it go.
+         */
+        void release(int col, int row, T tile);
+    }
+
+    private final TileIndex<T> m_tiles;
+    private final Owner<T> m_owner;
+
+    public PendingUploads(Owner<T> owner)
+    {
+        m_tiles = new TileIndex<>(8);
+        m_owner = owner;
+    }
+
+    /**
+     * Let go of a tile once its edits are uploaded, which may be at once.
+     */
+    public void add(int col, int row, T tile)
+    {
+        if (m_owner.isDirty(tile))
+        {
+            m_owner.upload(col, row, tile);
+        }
+        if (m_owner.isDirty(tile))
+        {
+            m_tiles.put(col, row, tile);
+        }
+        else
+        {
+            m_owner.release(col, row, tile);
+        }
+    }
+
+    /**
+     * Take back a held tile that is needed again.
+     *
+     * @return
+     *  The tile, or null if none is held there.
+     */
+    public T take(int col, int row)
+    {
+        return m_tiles.remove(col, row);
+    }
+
+    /**
+     * Offer every held tile for upload again, and let go of those whose
+     * edits are uploaded.
+     */
+    public void flush()
+    {
+        for (int slot = m_tiles.firstSlot(); slot >= 0; slot = m_tiles.nextSlot(slot))
+        {
+            T tile = m_tiles.tileAt(slot);
+            int col = m_tiles.colAt(slot);
+            int row = m_tiles.rowAt(slot);
+            if (m_owner.isDirty(tile))
+            {
+                m_owner.upload(col, row, tile);
+            }
+            if (!m_owner.isDirty(tile))
+            {
+                m_tiles.removeAt(slot);
+                m_owner.release(col, row, tile);
+            }
+        }
+    }
+
+    /**
+     * @return
+     *  Number of tiles held.
+     */
+    public int size()
+    {
+        return m_tiles.size();
+    }
+}
@@ -0,0 +1,137 @@
+package edu.calvin.equinox.magnumopus;
+
+/**
+ * Sizes the buffer of loaded tiles around the screen from how the view is
+ * moving.
+ *
+ * At rest the buffer is one tile on every side. While the view moves, the
+ * buffer grows on the leading side, by as far as the view travels in
+ * LEAD_TIME_MS, and shrinks on the trailing side, which the view is moving
+ * away from. Velocity is smoothed over recent movements, and is forgotten
+ * once the view stops moving for a moment.
+ */
+
+public class Prefetcher
+{
+    /**
+     * How far ahead to load, in time at the current velocity.
+     */
+    static final float LEAD_TIME_MS = 500;
+    /**
+     * Most extra buffer on the leading side, in pixels.
+     */
+    static final int MAX_LEAD = 3 * Tile.TILE_SIZE;
+    /**
+     * Speed, in pixels per millisecond, at which the trailing buffer is
+     * gone.
+     */
+    static final float FAST_SPEED = 1.5f;
+    /**
+     * A pause this long, in milliseconds, means the view stopped.
+     */
+    static final long STOP_MS = 100;
+
+    /**
+     * Weight of the newest movement in the smoothed velocity.
+     */
+    private static final float SMOOTHING = 0.4f;
+
+    private final int m_base;
+
+    // Smoothed velocity in pixels per millisecond.
+    private float m_vx;
+    private float m_vy;
+    private long m_lastTime;
+
+    /**
+     * @param base
+     *  Buffer on each side at rest, in pixels.
+     */
+    public Prefetcher(int base)
+    {
+        m_base = base;
+        m_lastTime = -1;
+    }
+
+    /**
+     * Record a movement of the view.
+     *
+     * @param dx, dy
+     *  Distance moved since the last call, in pixels.
+     * @param now
+     *  Time of the movement in milliseconds.
+     */
+    public void onMove(float dx, float dy, long now)
+    {
+        if (m_lastTime < 0 || now - m_lastTime > STOP_MS)
+        {
+            // Starting from rest; nothing to measure against yet.
+            m_vx = 0;
+            m_vy = 0;
+            m_lastTime = now;
+            return;
+        }
+        long dt = Math.max(now - m_lastTime, 1);
+        m_vx += (dx / dt - m_vx) * SMOOTHING;
+        m_vy += (dy / dt - m_vy) * SMOOTHING;
+        m_lastTime = now;
+    }
+
+    /**
+     * Forget the velocity, e.g. when a gesture ends.
+     */
+    public void reset()
+    {
+        m_vx = 0;
+        m_vy = 0;
+        m_lastTime = -1;
+    }
+
+    /**
+     * @return
+     *  Smoothed velocity in pixels per millisecond, or 0 if stopped.
+     */
+    public float getVelocityX(long now)
+    {
+        return isMoving(now) ? m_vx : 0;
+    }
+
+    public float getVelocityY(long now)
+    {
+        return isMoving(now) ? m_vy : 0;
+    }
+
+    /**
+     * @return
+     *  Buffer before the screen on an axis: left or top, in pixels.
+     */
+    public int getBufferBefore(float velocity)
+    {
+        return velocity < 0 ? lead(velocity) : trail(velocity);
+    }
+
+    /**
+     * @return
+     *  Buffer after the screen on an axis: right or bottom, in pixels.
+     */
+    public int getBufferAfter(float velocity)
+    {
+        return velocity > 0 ? lead(velocity) : trail(velocity);
+    }
+
+    private boolean isMoving(long now)
+    {
+        return m_lastTime >= 0 && now - m_lastTime <= STOP_MS;
+    }
+
+    private int lead(float velocity)
+    {
+        return m_base + Math.round(Math.min(Math.abs(velocity) * LEAD_TIME_MS, MAX_LEAD));
+    }
+
+    private int trail(float velocity)
+    {
+        float keep = Math.max(0, 1 - Math.abs(velocity) / FAST_SPEED);
+        return Math.round(m_base * keep);
+    }
+}
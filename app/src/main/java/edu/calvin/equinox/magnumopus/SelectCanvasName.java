@@ -20,17 +20,13 @@ import android.widget.EditText;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 
 /**
  * Create a dialog box so the user can select a canvas name
@@ -86,42 +82,20 @@ public class SelectCanvasName extends DialogFragment
         {
             theUrl = params[0];
 
-            URL apiURL;
-            try
-            {
-                apiURL = new URL(theUrl);
-            } catch (MalformedURLException e)
-            {
-                e.printStackTrace();
-                return null;
-            }
-
-
             JSONObject output = null;
 
             try
             {
-                HttpURLConnection conn = (HttpURLConnection)apiURL.openConnection();
+                HttpURLConnection conn = Http.open(theUrl);
                 conn.setRequestMethod("POST");
-                conn.setConnectTimeout(10000); // 10 sec
-                conn.setReadTimeout(10000);    // 10 sec
                 conn.setRequestProperty("Content-Type", "application/json; charset=utf8");
 
                 if (conn.getResponseCode() == HttpURLConnection.HTTP_OK)
                 {
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream())
-                    );
-                    StringBuilder result = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null)
-                    {
-                        result.append(line);
-                    }
-
+                    String result = Http.readString(conn);
                     try
                     {
-                        output = new JSONObject(result.toString());
+                        output = new JSONObject(result);
                     } catch (JSONException e)
                     {
                         e.printStackTrace();
@@ -130,8 +104,8 @@ public class SelectCanvasName extends DialogFragment
                 else
                 {
                     Log.e("PostTileUpdateTask", "HTTP error " + conn.getResponseCode());
+                    Http.discard(conn);
                 }
-                conn.disconnect();
 
             } catch (IOException e)
             {
@@ -0,0 +1,104 @@
+package edu.calvin.equinox.magnumopus;
+
+/**
+ * Compact encoding for tiles filled with a single color.
+ *
+ * A uniform tile is stored as a magic header followed by its ARGB color,
+ * instead of a full image. The header cannot start a PNG or JPEG, so the
+ * two encodings can share the disk cache and the server's "data" field.
+ */
+
+public final class SolidColor
+{
+    /**
+     * Header identifying an encoded color.
+     */
+    private static final byte[] MAGIC = {'S', 'O', 'L', 'D'};
+
+    /**
+     * Length of an encoded color.
+     */
+    public static final int ENCODED_LENGTH = MAGIC.length + 4;
+
+    private SolidColor()
+    {
+    }
+
+    /**
+     * Encode a uniform tile.
+     *
+     * @param color
+     *  ARGB color filling the tile.
+     *
+     * @return
+     *  The encoded bytes.
+     */
+    public static byte[] encode(int color)
+    {
+        byte[] data = new byte[ENCODED_LENGTH];
+        System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+        data[4] = (byte)(color >>> 24);
+        data[5] = (byte)(color >>> 16);
+        data[6] = (byte)(color >>> 8);
+        data[7] = (byte)color;
+        return data;
+    }
+
+    /**
+     * Check if data holds an encoded color rather than an image.
+     *
+     * @param data
+     *  Encoded tile; may be null.
+     */
+    public static boolean isEncoded(byte[] data)
+    {
+        if (data == null || data.length != ENCODED_LENGTH)
+        {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; ++i)
+        {
+            if (data[i] != MAGIC[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode the color of a uniform tile. Data must pass isEncoded().
+     *
+     * @return
+     *  The ARGB color.
+     */
+    public static int decode(byte[] data)
+    {
+        return (data[4] & 0xff) << 24
+             | (data[5] & 0xff) << 16
+             | (data[6] & 0xff) << 8
+             | (data[7] & 0xff);
+    }
+
+    /**
+     * Check if a run of pixels all have the same color.
+     *
+     * @param pixels
+     *  ARGB pixels.
+     * @param count
+     *  Number of pixels to check, from the start of the array.
+     * @param color
+     *  Expected color.
+     */
+    public static boolean isUniform(int[] pixels, int count, int color)
+    {
+        for (int i = 0; i < count; ++i)
+        {
+            if (pixels[i] != color)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,207 @@
+package edu.calvin.equinox.magnumopus;
+
+import android.graphics.Canvas;
+
+import java.util.HashMap;
+
+import edu.calvin.equinox.magnumopus.brushes.Brush;
+import edu.calvin.equinox.magnumopus.brushes.Eraser;
+import edu.calvin.equinox.magnumopus.brushes.PaintBrush;
+import edu.calvin.equinox.magnumopus.brushes.PenBrush;
+import edu.calvin.equinox.magnumopus.brushes.PencilBrush;
+import edu.calvin.equinox.magnumopus.brushes.Stroke;
+
+/**
+ * Record strokes once for the whole canvas, and have only the tiles within
+ * reach of the brush rasterize them.
+ *
+ * A tile joins the stroke the first time a segment comes within the brush's
+ * reach of it. It then draws the segments it missed, and from then on draws
+ * every segment until the stroke ends, so strokes stay continuous across
+ * tile borders.
+ */
+
+public class StrokeDispatcher
+{
+    /**
+     * Resident tiles of the canvas.
+     */
+    private TileIndex<Tile> m_tiles;
+
+    /**
+     * Tiles that have joined the current stroke.
+     */
+    private TileIndex<Tile> m_engaged;
+
+    /**
+     * The stroke being drawn, in canvas coordinates.
+     */
+    private Stroke m_stroke;
+
+    /**
+     * Brush painting the canvas.
+     */
+    private Brush m_brush;
+
+    /**
+     * Brushes that have been used, by type, so switching back is free.
+     */
+    private HashMap<String, Brush> m_brushes;
+
+    public StrokeDispatcher(TileIndex<Tile> tiles, String brushType)
+    {
+        m_tiles = tiles;
+        m_engaged = new TileIndex<>(16);
+        m_stroke = new Stroke();
+        m_brushes = new HashMap<>();
+        setBrush(brushType);
+    }
+
+    /**
+     * Set the brush depending on the brush type
+     *
+     * @param brushType
+     */
+    public void setBrush(String brushType)
+    {
+        m_brush = m_brushes.get(brushType);
+        if (m_brush != null)
+        {
+            return;
+        }
+
+        switch (brushType)
+        {
+            case "Paint Brush":
+                m_brush = new PaintBrush();
+                break;
+            case "Pen Brush":
+                m_brush = new PenBrush();
+                break;
+            case "Pencil Brush":
+                m_brush = new PencilBrush();
+                break;
+            default:
+                m_brush = new Eraser();
+                break;
+        }
+        m_brushes.put(brushType, m_brush);
+    }
+
+    /**
+     * Set the color of the current brush.
+     *
+     * @param colorType
+     */
+    public void setColor(int colorType)
+    {
+        m_brush.setColor(colorType);
+    }
+
+    /**
+     * Event handler for draw movement.
+     *
+     * @param x
+     *  The x coordinate of the current position, relative to the canvas.
+     * @param y
+     *  The y coordinate of the current position, relative to the canvas.
+     */
+    public void onTouchMove(float x, float y)
+    {
+        int first = m_stroke.size();
+        int added = m_brush.addPoint(m_stroke, x, y);
+        float reach = m_brush.getReach();
+        int trail = m_brush.getTrail();
+
+        for (int i = first; i < first + added; ++i)
+        {
+            // Join tiles near the points the segment may draw back to.
+            Coordinate<Float> coord = m_stroke.get(i);
+            float xMin = coord.x, xMax = coord.x;
+            float yMin = coord.y, yMax = coord.y;
+            for (int j = Math.max(0, i - trail); j < i; ++j)
+            {
+                Coordinate<Float> prev = m_stroke.get(j);
+                xMin = Math.min(xMin, prev.x);
+                xMax = Math.max(xMax, prev.x);
+                yMin = Math.min(yMin, prev.y);
+                yMax = Math.max(yMax, prev.y);
+            }
+            int colMin = TilingCanvasView.toTileIndex((int)Math.floor(xMin - reach));
+            int colMax = TilingCanvasView.toTileIndex((int)Math.floor(xMax + reach));
+            int rowMin = TilingCanvasView.toTileIndex((int)Math.floor(yMin - reach));
+            int rowMax = TilingCanvasView.toTileIndex((int)Math.floor(yMax + reach));
+            for (int col = colMin; col <= colMax; ++col)
+            {
+                for (int row = rowMin; row <= rowMax; ++row)
+                {
+                    Tile tile = m_tiles.get(col, row);
+                    if (tile != null && m_engaged.get(col, row) == null)
+                    {
+                        m_engaged.put(col, row, tile);
+                        catchUp(col, row, tile, i);
+                    }
+                }
+            }
+
+            for (int slot = m_engaged.firstSlot(); slot >= 0; slot = m_engaged.nextSlot(slot))
+            {
+                m_engaged.tileAt(slot).drawStrokeSegment(
+                        m_brush, m_stroke, i,
+                        m_engaged.colAt(slot) * Tile.TILE_SIZE,
+                        m_engaged.rowAt(slot) * Tile.TILE_SIZE
+                );
+            }
+        }
+    }
+
+    /**
+     * Event handler for draw end.
+     */
+    public void onTouchRelease()
+    {
+        for (int slot = m_engaged.firstSlot(); slot >= 0; slot = m_engaged.nextSlot(slot))
+        {
+            m_engaged.tileAt(slot).drawStrokeEnd(
+                    m_brush, m_stroke,
+                    m_engaged.colAt(slot) * Tile.TILE_SIZE,
+                    m_engaged.rowAt(slot) * Tile.TILE_SIZE
+            );
+        }
+        m_brush.onStrokeEnd();
+        m_engaged.clear();
+        m_stroke.clear();
+    }
+
+    /**
+     * Render the preview of the stroke in progress.
+     *
+     * @param canvas
+     *  Canvas of the view.
+     * @param left, top
+     *  Position of the view on the tiling canvas.
+     * @param scale
+     *  Scale the canvas is drawn at.
+     */
+    public void drawPreview(Canvas canvas, float left, float top, float scale)
+    {
+        if (!m_stroke.isEmpty())
+        {
+            m_brush.drawPreview(m_stroke, canvas, left, top, scale);
+        }
+    }
+
+    /**
+     * Have a newly joined tile draw the segments of the stroke it missed.
+     *
+     * @param until
+     *  Index of the newest point, which is drawn with the other tiles.
+     */
+    private void catchUp(int col, int row, Tile tile, int until)
+    {
+        for (int i = 0; i < until; ++i)
+        {
+            tile.drawStrokeSegment(m_brush, m_stroke, i, col * Tile.TILE_SIZE, row * Tile.TILE_SIZE);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package edu.calvin.equinox.magnumopus;
+
+import java.util.Random;
+
+/**
+ * How often a single tile is polled, based on how recently it changed.
+ *
+ * A tile that changes, locally or on the server, drops to the shortest
+ * interval. Every poll that finds nothing new doubles the interval, up to
+ * the longest. Due times are jittered so tiles that went quiet together do
+ * not all poll on the same tick.
+ */
+
+public class SyncInterval
+{
+    /**
+     * Shortest time between polls of an active tile.
+     */
+    public static final long MIN_INTERVAL_MS = 2000;
+    /**
+     * Longest time between polls of an idle tile.
+     */
+    public static final long MAX_INTERVAL_MS = 60000;
+    /**
+     * Fraction of the interval that due times may vary by.
+     */
+    private static final float JITTER = 0.2f;
+
+    private final Random m_rand;
+    private long m_interval;
+    private long m_nextDue;
+
+    /**
+     * Start out active, so a new tile is polled on the first tick.
+     *
+     * @param rand
+     *  Source of jitter.
+     */
+    public SyncInterval(Random rand)
+    {
+        m_rand = rand;
+        m_interval = MIN_INTERVAL_MS;
+        m_nextDue = 0;
+    }
+
+    /**
+     * The tile changed; poll it often.
+     *
+     * @param now
+     *  Current time in milliseconds.
+     */
+    public void onActivity(long now)
+    {
+        m_interval = MIN_INTERVAL_MS;
+        schedule(now);
+    }
+
+    /**
+     * A poll found no change; poll less often.
+     *
+     * @param now
+     *  Current time in milliseconds.
+     */
+    public void onQuiet(long now)
+    {
+        m_interval = Math.min(m_interval * 2, MAX_INTERVAL_MS);
+        schedule(now);
+    }
+
+    /**
+     * Make the tile due immediately, e.g. after losing push notifications.
+     */
+    public void reset()
+    {
+        m_interval = MIN_INTERVAL_MS;
+        m_nextDue = 0;
+    }
+
+    /**
+     * @param now
+     *  Current time in milliseconds.
+     *
+     * @return
+     *  True if the tile should be polled.
+     */
+    public boolean isDue(long now)
+    {
+        return now >= m_nextDue;
+    }
+
+    /**
+     * @return
+     *  Current interval, before jitter.
+     */
+    public long getInterval()
+    {
+        return m_interval;
+    }
+
+    private void schedule(long now)
+    {
+        float jitter = (m_rand.nextFloat() * 2 - 1) * JITTER;
+        m_nextDue = now + m_interval + (long)(m_interval * jitter);
+    }
+}
@@ -0,0 +1,328 @@
+package edu.calvin.equinox.magnumopus;
+
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run tile sync requests on a dedicated, bounded pool of worker threads.
+ *
+ * Jobs wait in a priority queue, so tiles on screen sync before the off
+ * screen buffer, and each host only gets a limited number of requests at
+ * once. A slow request ties up one worker instead of the app wide AsyncTask
+ * executor. Results are handed back through a delivery executor, normally
+ * the UI thread.
+ */
+
+public class SyncScheduler
+{
+    /**
+     * Priority of tiles in the off screen buffer.
+     */
+    public static final int PRIORITY_BUFFER = 0;
+    /**
+     * Priority of tiles on screen.
+     */
+    public static final int PRIORITY_VISIBLE = 1;
+
+    /**
+     * A request run by the scheduler, shaped like an AsyncTask.
+     *
+     * @param <R>
+     *  Type of the result.
+     */
+    public abstract static class Job<R>
+    {
+        private SyncScheduler m_scheduler;
+        private String m_host;
+        private int m_priority;
+        private long m_seq;
+        private volatile boolean m_isCancelled;
+
+        /**
+         * Perform the request. Called on a worker thread.
+         */
+        protected abstract R doInBackground();
+
+        /**
+         * Handle the result. Called on the delivery executor.
+         */
+        protected abstract void onPostExecute(R result);
+
+        /**
+         * Stop the job. A queued job never runs; a running job's result is
+         * dropped.
+         */
+        public void cancel()
+        {
+            m_isCancelled = true;
+            if (m_scheduler != null)
+            {
+                m_scheduler.remove(this);
+            }
+        }
+
+        public boolean isCancelled()
+        {
+            return m_isCancelled;
+        }
+    }
+
+    private final int m_maxPerHost;
+    private final ThreadPoolExecutor m_workers;
+    private final Executor m_deliver;
+
+    private final PriorityQueue<Job<?>> m_queue;
+    private final HashMap<String, Integer> m_activePerHost;
+    private int m_active;
+    private long m_nextSeq;
+
+    // Statistics.
+    private int m_maxQueueDepth;
+    private int m_completed;
+    private int m_cancelled;
+
+    /**
+     * @param workers
+     *  Most requests run at once.
+     * @param maxPerHost
+     *  Most requests run at once against a single host.
+     * @param deliver
+     *  Executor that results are delivered on.
+     */
+    public SyncScheduler(int workers, int maxPerHost, Executor deliver)
+    {
+        m_maxPerHost = maxPerHost;
+        m_deliver = deliver;
+        m_workers = new ThreadPoolExecutor(
+                workers, workers,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    private int m_count = 0;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "TileSync #" + ++m_count);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }
+        );
+        // Idle workers exit, so an unused scheduler holds no threads.
+        m_workers.allowCoreThreadTimeOut(true);
+
+        m_queue = new PriorityQueue<>(16, new Comparator<Job<?>>()
+        {
+            @Override
+            public int compare(Job<?> a, Job<?> b)
+            {
+                if (a.m_priority != b.m_priority)
+                {
+                    return a.m_priority > b.m_priority ? -1 : 1;
+                }
+                return a.m_seq < b.m_seq ? -1 : (a.m_seq == b.m_seq ? 0 : 1);
+            }
+        });
+        m_activePerHost = new HashMap<>();
+    }
+
+    /**
+     * Queue a job.
+     *
+     * @param job
+     *  Job to run. Each job may only be submitted once.
+     * @param url
+     *  URL the job requests, for the per-host limit. Jobs that are not
+     *  requests may pass any key; a key that is not a URL is its own host.
+     * @param priority
+     *  PRIORITY_VISIBLE or PRIORITY_BUFFER.
+     */
+    public synchronized void submit(Job<?> job, String url, int priority)
+    {
+        job.m_scheduler = this;
+        job.m_host = hostOf(url);
+        job.m_priority = priority;
+        job.m_seq = m_nextSeq++;
+        m_queue.add(job);
+        m_maxQueueDepth = Math.max(m_maxQueueDepth, m_queue.size());
+        dispatch();
+    }
+
+    /**
+     * @return
+     *  Number of jobs waiting to run.
+     */
+    public synchronized int getQueueDepth()
+    {
+        return m_queue.size();
+    }
+
+    /**
+     * @return
+     *  Most jobs that have waited at once.
+     */
+    public synchronized int getMaxQueueDepth()
+    {
+        return m_maxQueueDepth;
+    }
+
+    /**
+     * @return
+     *  Number of jobs running.
+     */
+    public synchronized int getActiveCount()
+    {
+        return m_active;
+    }
+
+    /**
+     * @return
+     *  Number of jobs that have finished running.
+     */
+    public synchronized int getCompletedCount()
+    {
+        return m_completed;
+    }
+
+    /**
+     * @return
+     *  Number of jobs cancelled before they ran.
+     */
+    public synchronized int getCancelledCount()
+    {
+        return m_cancelled;
+    }
+
+    private synchronized void remove(Job<?> job)
+    {
+        if (m_queue.remove(job))
+        {
+            ++m_cancelled;
+        }
+    }
+
+    /**
+     * Start as many queued jobs as the limits allow, highest priority first.
+     */
+    private void dispatch()
+    {
+        ArrayList<Job<?>> deferred = null;
+        while (m_active < m_workers.getMaximumPoolSize() && !m_queue.isEmpty())
+        {
+            Job<?> job = m_queue.poll();
+            Integer hostActive = m_activePerHost.get(job.m_host);
+            if (hostActive != null && hostActive >= m_maxPerHost)
+            {
+                // Host is busy; let other hosts go ahead.
+                if (deferred == null)
+                {
+                    deferred = new ArrayList<>();
+                }
+                deferred.add(job);
+                continue;
+            }
+
+            m_activePerHost.put(job.m_host, hostActive == null ? 1 : hostActive + 1);
+            ++m_active;
+            m_workers.execute(new Runner<>(job));
+        }
+        if (deferred != null)
+        {
+            m_queue.addAll(deferred);
+        }
+    }
+
+    private synchronized void finish(Job<?> job)
+    {
+        int hostActive = m_activePerHost.get(job.m_host) - 1;
+        if (hostActive == 0)
+        {
+            m_activePerHost.remove(job.m_host);
+        }
+        else
+        {
+            m_activePerHost.put(job.m_host, hostActive);
+        }
+        --m_active;
+        ++m_completed;
+        dispatch();
+    }
+
+    /**
+     * Run a job on a worker, then deliver its result.
+     */
+    private final class Runner<R> implements Runnable
+    {
+        private final Job<R> m_job;
+
+        private Runner(Job<R> job)
+        {
+            m_job = job;
+        }
+
+        @Override
+        public void run()
+        {
+            R result = null;
+            try
+            {
+                if (!m_job.isCancelled())
+                {
+                    result = m_job.doInBackground();
+                }
+            }
+            catch (Throwable e)
+            {
+                // Errors too, e.g. running out of memory decoding a tile: the
+                // job must still be told, or its tile never syncs again.
+                Log.e("SyncScheduler", "Sync job failed", e);
+            }
+            finally
+            {
+                finish(m_job);
+            }
+
+            final R delivered = result;
+            m_deliver.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (!m_job.isCancelled())
+                    {
+                        m_job.onPostExecute(delivered);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return
+     *  Host part of a URL, or the whole string if it does not parse.
+     */
+    static String hostOf(String url)
+    {
+        try
+        {
+            URL parsed = new URL(url);
+            return parsed.getHost() + ":" + parsed.getPort();
+        } catch (MalformedURLException e)
+        {
+            return url;
+        }
+    }
+}
@@ -4,34 +4,30 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Picture;
 import android.graphics.PorterDuff;
-import android.os.AsyncTask;
-import android.util.Base64;
-import android.util.Base64OutputStream;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.View;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.calvin.equinox.magnumopus.brushes.Brush;
-import edu.calvin.equinox.magnumopus.brushes.Eraser;
-import edu.calvin.equinox.magnumopus.brushes.PaintBrush;
-import edu.calvin.equinox.magnumopus.brushes.PenBrush;
-import edu.calvin.equinox.magnumopus.brushes.PencilBrush;
+import edu.calvin.equinox.magnumopus.brushes.Stroke;
 
 /**
  * A section of the canvas.
@@ -42,10 +38,22 @@ public class Tile
     /**
      * Pixel dimension of each tile.
      */
-    public static final int TILE_SIZE = 256;
+    public static final int TILE_SIZE = TileGrid.TILE_SIZE;
 
     /**
-     * Bitmap of active user drawings.
+     * Pixel dimension of proxy images, drawn scaled up until a tile first
+     * syncs.
+     */
+    public static final int PROXY_SIZE = 32;
+
+    /**
+     * The server's proxy endpoint, which may be missing.
+     */
+    private static final OptionalEndpoint PROXIES = new OptionalEndpoint();
+
+    /**
+     * Bitmap of active user drawings. Only allocated while a stroke is near
+     * the tile or edits are waiting to sync.
      */
     private Bitmap m_drawLayer;
     /**
@@ -54,31 +62,63 @@ public class Tile
     private Canvas m_drawLayerCanvas;
 
     /**
-     * Verified synchronized tile bitmap from the server.
+     * Verified synchronized tile bitmap from the server. Null while the tile
+     * is a single color.
      */
     private Bitmap m_syncedLayer;
     /**
      * Canvas for updating synchronized layer.
      */
     private Canvas m_syncedLayerCanvas;
+    /**
+     * Color filling the synced layer while m_syncedLayer is null.
+     * Transparent for a blank tile.
+     */
+    private int m_solidColor;
     /**
      * Version code of m_syncedLayer.
      */
     private int m_syncVersion;
+    /**
+     * Version last written to or read from the disk cache.
+     */
+    private int m_savedVersion;
 
     /**
-     * Composited bitmap for display.
+     * Composited bitmap for display. Only allocated when there are two
+     * layers to composite.
      */
     private Bitmap m_composite;
     /**
      * Canvas for drawing the composite.
      */
     private Canvas m_compositeCanvas;
+    /**
+     * Region of m_composite that is out of date with the layers.
+     */
+    private Rect m_staleRect;
+    /**
+     * Cached region painted by a brush.
+     */
+    private RectF m_damage;
+
+    /**
+     * Recorded drawing of all layers, for the picture render mode.
+     */
+    private Picture m_picture;
+    /**
+     * True if the layers changed since m_picture was recorded.
+     */
+    private boolean m_isPictureStale;
 
     /**
      * True if there are active edits on m_drawLayer.
      */
     private boolean m_isDirty;
+    /**
+     * Region of m_drawLayer edited since the last upload.
+     */
+    private Rect m_editRect;
 
     // Valid states for m_syncState.
     private static final int NOT_SYNCING     = 0;
@@ -86,416 +126,1285 @@ public class Tile
     private static final int COMPLETING_SYNC = 2;
 
     /**
-     * State lock to avoid multiple syncs occurring at the same time.
+     * State lock to avoid multiple syncs occurring at the same time.
+     */
+    private AtomicInteger m_syncState;
+
+    /**
+     * True once the layers have been returned to the bitmap pool.
+     */
+    private boolean m_isRecycled;
+
+    /**
+     * When this tile is next due to poll the server.
+     */
+    private SyncInterval m_syncInterval;
+
+    /**
+     * Jitter for every tile's SyncInterval.
+     */
+    private static final Random SYNC_JITTER = new Random();
+
+    /**
+     * Download of this tile that is queued or running, if any.
+     */
+    private SyncScheduler.Job<?> m_pendingDownload;
+
+    /**
+     * System.nanoTime() when the sync in flight was queued.
+     */
+    private long m_syncStart;
+
+    /**
+     * Load of this tile from the disk cache that is queued or running, if
+     * any.
+     */
+    private SyncScheduler.Job<?> m_pendingLoad;
+
+    /**
+     * Low resolution stand-in for a tile with nothing cached, drawn until
+     * its first sync.
+     */
+    private Bitmap m_proxy;
+    /**
+     * Download of m_proxy that is queued or running, if any.
+     */
+    private SyncScheduler.Job<?> m_pendingProxy;
+
+    /**
+     *Creates a blank Tile. Fill it with beginLoad() or a sync.
+     */
+
+    public Tile()
+    {
+        m_solidColor = Color.TRANSPARENT;
+        m_staleRect = new Rect(0, 0, TILE_SIZE, TILE_SIZE);
+        m_damage = new RectF();
+        m_editRect = new Rect();
+        m_isPictureStale = true;
+
+        // Layers are allocated on demand.
+
+        m_isDirty = false;
+        m_syncState = new AtomicInteger(NOT_SYNCING);
+        m_syncInterval = new SyncInterval(SYNC_JITTER);
+    }
+
+    /**
+     * Recreate a tile from a snapshot that never reached the disk cache.
+     *
+     * @param snapshot
+     *  Snapshot from snapshot(). The tile takes over its memory.
+     */
+    public Tile(CacheSnapshot snapshot)
+    {
+        this();
+        adopt(snapshot);
+    }
+
+    /**
+     * Take over a snapshot as the synced layer, at its version.
+     */
+    private void adopt(CacheSnapshot snapshot)
+    {
+        dropProxy();
+        m_syncVersion = snapshot.m_version;
+        if (snapshot.m_layer == null)
+        {
+            setSolid(snapshot.m_solidColor);
+        }
+        else
+        {
+            BitmapPool.INSTANCE.release(m_syncedLayer);
+            m_syncedLayer = snapshot.m_layer;
+            m_syncedLayerCanvas = new Canvas(m_syncedLayer);
+            snapshot.m_layer = null;
+            markStale();
+        }
+    }
+
+    /**
+     * Fill the tile from the disk cache in the background. Until the load
+     * finishes the tile is drawn as a placeholder, and should not sync. If
+     * nothing is cached, a proxy is then fetched to draw until the first
+     * sync.
+     *
+     * @param key
+     *  Key of the tile in the disk cache.
+     * @param proxyUrl
+     *  URL of the tile's proxy image.
+     * @param view
+     *  View to redraw once loaded.
+     * @param cacheWriter
+     *  Writer to the disk cache, read through so a write in flight is seen.
+     * @param loader
+     *  Scheduler to read the disk cache on.
+     * @param network
+     *  Scheduler to fetch the proxy on, so it does not hold up disk reads.
+     * @param priority
+     *  SyncScheduler.PRIORITY_VISIBLE or PRIORITY_BUFFER.
+     */
+    public void beginLoad(String key, String proxyUrl, View view, CacheWriter<?> cacheWriter,
+                          SyncScheduler loader, SyncScheduler network, int priority)
+    {
+        m_pendingLoad = new LoadTileTask(key, proxyUrl, view, cacheWriter, network, priority);
+        loader.submit(m_pendingLoad, key, priority);
+    }
+
+    /**
+     * @return
+     *  True until a load started by beginLoad() finishes.
+     */
+    public boolean isLoading()
+    {
+        return m_pendingLoad != null;
+    }
+
+    private void completeLoad(@Nullable CacheSnapshot snapshot, @Nullable View view)
+    {
+        m_pendingLoad = null;
+        if (snapshot != null)
+        {
+            if (!m_isRecycled && snapshot.m_version > m_syncVersion)
+            {
+                adopt(snapshot);
+                m_savedVersion = m_syncVersion;
+            }
+            snapshot.discard();
+        }
+        if (view != null)
+        {
+            view.invalidate();
+        }
+    }
+
+    /**
+     * @return
+     *  True while a proxy is being fetched.
+     */
+    public boolean isProxyLoading()
+    {
+        return m_pendingProxy != null;
+    }
+
+    /**
+     * @return
+     *  A PROXY_SIZE image to draw scaled up under the tile, or null if there
+     *  is none.
+     */
+    @Nullable
+    public Bitmap getProxy()
+    {
+        return m_proxy;
+    }
+
+    private void beginProxyLoad(String url, View view, SyncScheduler network, int priority)
+    {
+        m_pendingProxy = new LoadProxyTask(url, view);
+        network.submit(m_pendingProxy, url, priority);
+    }
+
+    private void completeProxyLoad(@Nullable Bitmap proxy, @Nullable View view)
+    {
+        m_pendingProxy = null;
+        if (m_isRecycled || m_syncVersion > 0)
+        {
+            // The real thing got here first.
+            BitmapPool.INSTANCE.release(proxy);
+            return;
+        }
+        m_proxy = proxy;
+        if (view != null)
+        {
+            view.invalidate();
+        }
+    }
+
+    /**
+     * Stop showing the proxy, once the tile has real content.
+     */
+    private void dropProxy()
+    {
+        if (m_pendingProxy != null)
+        {
+            m_pendingProxy.cancel();
+            m_pendingProxy = null;
+        }
+        BitmapPool.INSTANCE.release(m_proxy);
+        m_proxy = null;
+    }
+
+    /**
+     * Fetch a proxy image. Called off the UI thread.
+     *
+     * @return
+     *  The proxy as a pooled bitmap, or null if the server has none.
+     */
+    @Nullable
+    private static Bitmap fetchProxy(String url)
+    {
+        TileFrame frame = null;
+        try
+        {
+            HttpURLConnection conn = Http.open(url);
+            conn.setRequestProperty("Accept", TileFrame.ACCEPT);
+            int status = conn.getResponseCode();
+            // A server without proxies leaves tiles to their full syncs.
+            PROXIES.onResponse(status, SystemClock.uptimeMillis());
+            if (status == HttpURLConnection.HTTP_OK)
+            {
+                frame = readResponse(conn);
+            }
+            else
+            {
+                Http.discard(conn);
+            }
+        } catch (IOException e)
+        {
+            Log.w("Tile", "Could not fetch proxy", e);
+        }
+
+        if (frame == null || frame.data == null)
+        {
+            return null;
+        }
+        if (SolidColor.isEncoded(frame.data))
+        {
+            Bitmap proxy = BitmapPool.INSTANCE.acquire(PROXY_SIZE, PROXY_SIZE);
+            proxy.eraseColor(SolidColor.decode(frame.data));
+            return proxy;
+        }
+        return BitmapPool.INSTANCE.decode(frame.data);
+    }
+
+    /**
+     * Decode a disk cache entry. Safe to call off the UI thread.
+     *
+     * @param cacheEntry
+     *  Entry written from a CacheSnapshot; may be null.
+     *
+     * @return
+     *  The decoded snapshot, or null if there was no usable entry.
+     */
+    @Nullable
+    private static CacheSnapshot readCacheEntry(@Nullable byte[] cacheEntry)
+    {
+        if (cacheEntry == null)
+        {
+            return null;
+        }
+
+        TileFrame frame;
+        try
+        {
+            frame = TileFrame.read(new ByteArrayInputStream(cacheEntry), cacheEntry.length);
+        } catch (IOException e)
+        {
+            Log.w("Tile", "Unreadable cache entry", e);
+            return null;
+        }
+        if (frame.data == null)
+        {
+            return null;
+        }
+        if (SolidColor.isEncoded(frame.data))
+        {
+            return new CacheSnapshot(frame.version, SolidColor.decode(frame.data), null);
+        }
+
+        Bitmap img = BitmapPool.INSTANCE.decode(frame.data);
+        if (img == null)
+        {
+            return null;
+        }
+        if (isUniform(img))
+        {
+            int color = img.getPixel(0, 0);
+            BitmapPool.INSTANCE.release(img);
+            return new CacheSnapshot(frame.version, color, null);
+        }
+        if (!img.isMutable() || img.getWidth() != TILE_SIZE || img.getHeight() != TILE_SIZE)
+        {
+            Bitmap layer = BitmapPool.INSTANCE.acquire(TILE_SIZE, TILE_SIZE);
+            new Canvas(layer).drawBitmap(img, 0, 0, null);
+            BitmapPool.INSTANCE.release(img);
+            img = layer;
+        }
+        return new CacheSnapshot(frame.version, Color.TRANSPARENT, img);
+    }
+
+    /**
+     * Composite all layers of this tile for display. Only the regions that
+     * changed since the last call are redrawn. A tile with a single layer
+     * skips compositing and returns that layer.
+     *
+     * @return
+     *  The composite bitmap, or null if the tile is solid.
+     */
+    @Nullable
+    public Bitmap getComposite()
+    {
+        if (m_drawLayer == null)
+        {
+            return m_syncedLayer;
+        }
+        if (m_syncedLayer == null && Color.alpha(m_solidColor) == 0)
+        {
+            return m_drawLayer;
+        }
+
+        if (m_composite == null)
+        {
+            m_composite = BitmapPool.INSTANCE.acquire(TILE_SIZE, TILE_SIZE);
+            m_compositeCanvas = new Canvas(m_composite);
+            m_staleRect.set(0, 0, TILE_SIZE, TILE_SIZE);
+        }
+        if (m_staleRect.isEmpty())
+        {
+            return m_composite;
+        }
+
+        long start = System.nanoTime();
+        m_compositeCanvas.save();
+        m_compositeCanvas.clipRect(m_staleRect);
+        m_compositeCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+
+        drawSyncedLayer(m_compositeCanvas);
+        m_compositeCanvas.drawBitmap(m_drawLayer, 0, 0, null);
+        m_compositeCanvas.restore();
+
+        m_staleRect.setEmpty();
+        Metrics.COMPOSITE.recordSince(start);
+        return m_composite;
+    }
+
+    /**
+     * Copy the synced layer and its version for the disk cache. Edits that
+     * have not been uploaded are left out, so a cache hit is a valid base
+     * for syncing on from that version. Copying is cheap; the snapshot is
+     * encoded later, off the UI thread.
+     *
+     * @return
+     *  The snapshot, which the caller must write or discard.
+     */
+    public CacheSnapshot snapshot()
+    {
+        Bitmap layer = null;
+        if (m_syncedLayer != null)
+        {
+            layer = BitmapPool.INSTANCE.acquire(TILE_SIZE, TILE_SIZE);
+            new Canvas(layer).drawBitmap(m_syncedLayer, 0, 0, null);
+        }
+        m_savedVersion = m_syncVersion;
+        return new CacheSnapshot(m_syncVersion, m_solidColor, layer);
+    }
+
+    /**
+     * A copy of a tile's synced layer, waiting to be written to the disk
+     * cache.
+     */
+    public static final class CacheSnapshot implements CacheWriter.Entry
+    {
+        private final int m_version;
+        private final int m_solidColor;
+        /**
+         * Pooled copy of the synced layer, or null for a solid tile.
+         */
+        private Bitmap m_layer;
+
+        private CacheSnapshot(int version, int solidColor, @Nullable Bitmap layer)
+        {
+            m_version = version;
+            m_solidColor = solidColor;
+            m_layer = layer;
+        }
+
+        /**
+         * Encode as a cache entry: a TileFrame holding a lossless PNG, or
+         * SolidColor data for a solid tile.
+         */
+        @Override
+        public byte[] encode()
+        {
+            ByteArrayOutputStream entry = new ByteArrayOutputStream(16 * 1024);
+            try
+            {
+                TileFrame.writeHeader(entry, m_version);
+                if (m_layer == null)
+                {
+                    entry.write(SolidColor.encode(m_solidColor));
+                }
+                else
+                {
+                    m_layer.compress(Bitmap.CompressFormat.PNG, 100, entry);
+                }
+            } catch (IOException e)
+            {
+                // Not thrown by a ByteArrayOutputStream.
+                throw new IllegalStateException(e);
+            }
+            return entry.toByteArray();
+        }
+
+        @Override
+        public void discard()
+        {
+            BitmapPool.INSTANCE.release(m_layer);
+            m_layer = null;
+        }
+    }
+
+    /**
+     * Record all layers of this tile for display. The recording is reused
+     * until a layer changes, so drawing it is just a replay.
+     *
+     * @return
+     *  The recorded picture, or null if the tile is solid.
+     */
+    @Nullable
+    public Picture getPicture()
+    {
+        if (isSolid())
+        {
+            return null;
+        }
+
+        if (m_isPictureStale)
+        {
+            if (m_picture == null)
+            {
+                m_picture = new Picture();
+            }
+            Canvas canvas = m_picture.beginRecording(TILE_SIZE, TILE_SIZE);
+            drawSyncedLayer(canvas);
+            if (m_drawLayer != null)
+            {
+                canvas.drawBitmap(m_drawLayer, 0, 0, null);
+            }
+            m_picture.endRecording();
+
+            m_isPictureStale = false;
+        }
+        return m_picture;
+    }
+
+    /**
+     * Mark the whole composite as out of date.
+     */
+    private void markStale()
+    {
+        m_staleRect.set(0, 0, TILE_SIZE, TILE_SIZE);
+        m_isPictureStale = true;
+    }
+
+    /**
+     * Mark the region a brush painted as out of date.
+     */
+    private void markStale(RectF damage)
+    {
+        m_staleRect.union(
+                (int)Math.floor(damage.left), (int)Math.floor(damage.top),
+                (int)Math.ceil(damage.right), (int)Math.ceil(damage.bottom)
+        );
+        if (!m_staleRect.intersect(0, 0, TILE_SIZE, TILE_SIZE))
+        {
+            m_staleRect.setEmpty();
+        }
+        m_isPictureStale = true;
+    }
+
+    public int getVersion()
+    {
+        return m_syncVersion;
+    }
+
+    /**
+     * @return
+     *  True if the tile has edits waiting to upload.
+     */
+    public boolean isDirty()
+    {
+        return m_isDirty;
+    }
+
+    /**
+     * @return
+     *  True while a download or upload is in flight.
+     */
+    public boolean isSyncing()
+    {
+        return m_syncState.get() != NOT_SYNCING;
+    }
+
+    /**
+     * @return
+     *  True if the synced layer changed since it was last written to the
+     *  disk cache.
+     */
+    public boolean hasUnsavedChanges()
+    {
+        return m_syncVersion > 0 && m_syncVersion != m_savedVersion;
+    }
+
+    /**
+     * @return
+     *  Bytes of bitmap memory the tile holds, plus a small fixed overhead
+     *  so even bitmapless tiles count for something.
+     */
+    public long getByteCount()
+    {
+        long bytes = 1024;
+        if (m_drawLayer != null)
+        {
+            bytes += m_drawLayer.getByteCount();
+        }
+        if (m_syncedLayer != null)
+        {
+            bytes += m_syncedLayer.getByteCount();
+        }
+        if (m_composite != null)
+        {
+            bytes += m_composite.getByteCount();
+        }
+        if (m_proxy != null)
+        {
+            bytes += m_proxy.getByteCount();
+        }
+        return bytes;
+    }
+
+    /**
+     * Check if this tile should sync on this tick.
+     *
+     * @param now
+     *  SystemClock.uptimeMillis().
+     *
+     * @return
+     *  True if the tile has edits, or is due to poll the server.
+     */
+    public boolean isSyncDue(long now)
+    {
+        return m_isDirty || m_syncInterval.isDue(now);
+    }
+
+    /**
+     * Poll this tile on the next tick, whatever its interval.
+     */
+    public void syncSoon()
+    {
+        m_syncInterval.reset();
+    }
+
+    /**
+     * Check if this tile is a single color, with no bitmap to draw. Blank
+     * tiles are solid transparent.
+     *
+     * @return
+     *  True if the tile should be drawn as a fill of getSolidColor().
      */
-    private AtomicInteger m_syncState;
+    public boolean isSolid()
+    {
+        return m_syncedLayer == null && m_drawLayer == null;
+    }
 
     /**
-     * Current brush this tile is painting with.
+     * @return
+     *  The color of a solid tile.
      */
-    private Brush m_brush;
-    private Color m_color;
+    public int getSolidColor()
+    {
+        return m_solidColor;
+    }
 
     /**
-     *Creates a Tile
-     * @param brushType
+     * Draw the synced layer, or the color standing in for it.
      */
-
-    public Tile(String brushType, byte[] cacheImg)
+    private void drawSyncedLayer(Canvas canvas)
     {
-        m_drawLayer = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
-        m_drawLayerCanvas = new Canvas(m_drawLayer);
-
-        if (cacheImg != null)
+        if (m_syncedLayer != null)
         {
-            BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
-            bitmapOptions.inMutable = true;
-            m_syncedLayer = BitmapFactory.decodeByteArray(cacheImg, 0, cacheImg.length, bitmapOptions);
+            canvas.drawBitmap(m_syncedLayer, 0, 0, null);
         }
-        if (m_syncedLayer == null)
+        else if (Color.alpha(m_solidColor) != 0)
         {
-            m_syncedLayer = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+            canvas.drawColor(m_solidColor);
         }
-        m_syncedLayerCanvas = new Canvas(m_syncedLayer);
-
-        m_composite = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
-        m_compositeCanvas = new Canvas(m_composite);
-
-        m_isDirty = false;
-        m_syncState = new AtomicInteger(NOT_SYNCING);
+    }
 
-        setBrush(brushType);
+    /**
+     * Give the synced layer a bitmap, filled with the solid color.
+     */
+    private void ensureSyncedLayer()
+    {
+        if (m_syncedLayer == null)
+        {
+            m_syncedLayer = BitmapPool.INSTANCE.acquire(TILE_SIZE, TILE_SIZE);
+            m_syncedLayer.eraseColor(m_solidColor);
+            m_syncedLayerCanvas = new Canvas(m_syncedLayer);
+        }
     }
 
     /**
-     * Set the brush depending on the brush type
+     * Replace the synced layer with an encoded tile. Uniform tiles are kept
+     * as just their color.
      *
-     * @param brushType
-     * @return Brush m_brush
+     * @param data
+     *  PNG, JPEG or SolidColor data; may be null.
+     *
+     * @return
+     *  True if the data was understood.
      */
-    protected void setBrush(String brushType)
+    private boolean setSyncedData(@Nullable byte[] data)
     {
-        switch (brushType)
+        if (data == null)
         {
-            case "Paint Brush":
-                m_brush = new PaintBrush(m_drawLayerCanvas);
-                break;
-            case "Pen Brush":
-                m_brush = new PenBrush(m_drawLayerCanvas);
-                break;
-            case "Pencil Brush":
-                m_brush = new PencilBrush(m_drawLayerCanvas);
-                break;
-            default:
-                m_brush = new Eraser(m_drawLayerCanvas);
-                break;
+            return false;
+        }
 
+        if (SolidColor.isEncoded(data))
+        {
+            setSolid(SolidColor.decode(data));
+            return true;
+        }
 
+        Bitmap img = BitmapPool.INSTANCE.decode(data);
+        if (img == null)
+        {
+            return false;
+        }
+        if (isUniform(img))
+        {
+            setSolid(img.getPixel(0, 0));
+            BitmapPool.INSTANCE.release(img);
         }
+        else if (img.isMutable() && img.getWidth() == TILE_SIZE && img.getHeight() == TILE_SIZE)
+        {
+            BitmapPool.INSTANCE.release(m_syncedLayer);
+            m_syncedLayer = img;
+            m_syncedLayerCanvas = new Canvas(m_syncedLayer);
+        }
+        else
+        {
+            ensureSyncedLayer();
+            m_syncedLayerCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            m_syncedLayerCanvas.drawBitmap(img, 0, 0, null);
+            BitmapPool.INSTANCE.release(img);
+        }
+        markStale();
+        return true;
     }
 
     /**
-     * Set the color depending on the color type
-     *
-     * @param colorType
-     * @return Color m_color
+     * Drop the synced layer's bitmap in favour of a single color.
      */
-   protected void setColor(int colorType)
+    private void setSolid(int color)
     {
-        m_brush.setColor(colorType);
+        BitmapPool.INSTANCE.release(m_syncedLayer);
+        m_syncedLayer = null;
+        m_syncedLayerCanvas = null;
+        m_solidColor = color;
+        markStale();
     }
 
     /**
-     * Composite all layers of this tile for display.
-     *
-     * @return
-     *  The composite bitmap.
+     * Check if every pixel of an image is the same color. Mixed images
+     * usually differ within the first row, so this is cheap for them.
      */
-    public Bitmap getComposite()
+    private static boolean isUniform(Bitmap img)
     {
-        m_compositeCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-
-        m_compositeCanvas.drawBitmap(m_syncedLayer, 0, 0, null);
-        m_compositeCanvas.drawBitmap(m_drawLayer, 0, 0, null);
-
-        m_brush.drawPreview(m_compositeCanvas);
-
-        return m_composite;
+        int width = img.getWidth();
+        int[] row = new int[width];
+        int color = img.getPixel(0, 0);
+        for (int y = 0; y < img.getHeight(); ++y)
+        {
+            img.getPixels(row, 0, width, 0, y, width, 1);
+            if (!SolidColor.isUniform(row, width, color))
+            {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public Bitmap getSolidComposite()
+    /**
+     * Allocate the draw layer if this tile does not have one yet.
+     */
+    private void ensureDrawLayer()
     {
-        getComposite();
-        m_compositeCanvas.drawColor(Color.WHITE, PorterDuff.Mode.DST_OVER);
+        if (m_drawLayer == null)
+        {
+            m_drawLayer = BitmapPool.INSTANCE.acquire(TILE_SIZE, TILE_SIZE);
+            m_drawLayerCanvas = new Canvas(m_drawLayer);
+        }
+    }
 
-        return m_composite;
+    /**
+     * Return the (empty) draw layer, and the composite it needed, to the
+     * bitmap pool.
+     */
+    private void releaseDrawLayer()
+    {
+        BitmapPool.INSTANCE.release(m_drawLayer);
+        m_drawLayer = null;
+        m_drawLayerCanvas = null;
+
+        BitmapPool.INSTANCE.release(m_composite);
+        m_composite = null;
+        m_compositeCanvas = null;
+        m_isPictureStale = true;
     }
 
-    public int getVersion()
+    /**
+     * Return this tile's layers to the bitmap pool when it is unloaded. The
+     * tile must not be drawn afterwards, and syncs still in flight are
+     * discarded. Queued downloads are cancelled; uploads still go through so
+     * edits are not lost.
+     */
+    public void recycle()
     {
-        return m_syncVersion;
+        m_isRecycled = true;
+        if (m_pendingDownload != null)
+        {
+            m_pendingDownload.cancel();
+            m_pendingDownload = null;
+        }
+        if (m_pendingLoad != null)
+        {
+            m_pendingLoad.cancel();
+            m_pendingLoad = null;
+        }
+        dropProxy();
+
+        BitmapPool.INSTANCE.release(m_drawLayer);
+        BitmapPool.INSTANCE.release(m_syncedLayer);
+        BitmapPool.INSTANCE.release(m_composite);
+        m_drawLayer = null;
+        m_drawLayerCanvas = null;
+        m_syncedLayer = null;
+        m_syncedLayerCanvas = null;
+        m_composite = null;
+        m_compositeCanvas = null;
+        m_picture = null;
     }
 
     /**
-     * Event handler for draw movement.
+     * Draw the part of a stroke ending at a point onto this tile.
      *
-     * @param x
-     *  The x coordinate of the current position.
-     * @param y
-     *  The y coordinate of the current position.
+     * @param brush
+     *  Brush painting the stroke.
+     * @param stroke
+     *  The stroke, in canvas coordinates.
+     * @param index
+     *  Index of the newest point to draw up to.
+     * @param left, top
+     *  Position of this tile on the canvas.
+     */
+    public void drawStrokeSegment(Brush brush, Stroke stroke, int index, float left, float top)
+    {
+        // The stroke is within reach, so it will most likely paint here.
+        ensureDrawLayer();
+        m_damage.setEmpty();
+        if (brush.drawSegment(stroke, index, m_drawLayerCanvas, left, top, m_damage))
+        {
+            addEdit(m_damage);
+        }
+    }
+
+    /**
+     * Draw the end of a stroke onto this tile.
      */
-    public void onTouchMove(float x, float y)
+    public void drawStrokeEnd(Brush brush, Stroke stroke, float left, float top)
     {
-        if (m_brush.onTouchMove(x, y))
+        ensureDrawLayer();
+        m_damage.setEmpty();
+        if (brush.drawStrokeEnd(stroke, m_drawLayerCanvas, left, top, m_damage))
+        {
+            addEdit(m_damage);
+        }
+
+        if (!m_isDirty)
         {
-            m_isDirty = true;
+            // Stroke passed nearby without painting here.
+            releaseDrawLayer();
         }
     }
 
     /**
-     * Event handler for draw end.
+     * Record a region a brush painted on m_drawLayer.
      */
-    public void onTouchRelease()
+    private void addEdit(RectF damage)
     {
-        if (m_brush.onTouchRelease())
+        m_isDirty = true;
+        m_editRect.union(
+                (int)Math.floor(damage.left), (int)Math.floor(damage.top),
+                (int)Math.ceil(damage.right), (int)Math.ceil(damage.bottom)
+        );
+        if (!m_editRect.intersect(0, 0, TILE_SIZE, TILE_SIZE))
         {
-            m_isDirty = true;
+            m_editRect.setEmpty();
         }
+        markStale(damage);
     }
 
     /**
      * Dispatch current edits to the server for synchronization.
+     *
+     * @param scheduler
+     *  Scheduler to run the request on.
+     * @param priority
+     *  Priority of the request; see SyncScheduler.
      */
-    public void beginSyncEdits(String syncURL, String updateURL, View view)
+    public void beginSyncEdits(String syncURL, String updateURL, View view,
+                               SyncScheduler scheduler, int priority)
     {
         if (m_syncState.compareAndSet(NOT_SYNCING, SYNCING))
         {
+            m_syncStart = System.nanoTime();
             if (m_isDirty)
             {
                 // Dispatch m_drawLayer to server.
-                new PostTileUpdateTask(m_drawLayer, m_syncVersion, view).execute(updateURL);
+                scheduler.submit(
+                        new PostTileUpdateTask(m_drawLayer, m_editRect, m_syncVersion, view, updateURL),
+                        updateURL, priority
+                );
+                m_editRect.setEmpty();
 
-                m_syncedLayerCanvas.drawBitmap(m_drawLayer, 0, 0, null);
-                m_drawLayerCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                // Move the edits into the synced layer. This leaves the
+                // composite unchanged, but the recording holds the old layers.
+                if (m_syncedLayer == null && Color.alpha(m_solidColor) == 0)
+                {
+                    m_syncedLayer = m_drawLayer;
+                    m_syncedLayerCanvas = m_drawLayerCanvas;
+                    m_drawLayer = null;
+                }
+                else
+                {
+                    ensureSyncedLayer();
+                    m_syncedLayerCanvas.drawBitmap(m_drawLayer, 0, 0, null);
+                }
+                releaseDrawLayer();
 
                 m_isDirty = false;
             }
             else
             {
                 // Dispatch m_syncVersion to server.
-                new GetTileSyncTask(m_syncVersion, view).execute(syncURL);
+                m_pendingDownload = new GetTileSyncTask(m_syncVersion, view, syncURL);
+                scheduler.submit(m_pendingDownload, syncURL, priority);
+            }
+        }
+    }
+
+    /**
+     * Reserve this tile for a batched sync, in place of beginSyncEdits().
+     *
+     * @return
+     *  True if the tile has no edits to upload and no sync in flight.
+     */
+    public boolean beginBatchSync()
+    {
+        if (!m_isDirty && m_syncState.compareAndSet(NOT_SYNCING, SYNCING))
+        {
+            m_syncStart = System.nanoTime();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Apply this tile's entry of a batched sync response.
+     *
+     * @param tileData
+     *  The tile's entry, or null if it did not change.
+     */
+    public void completeBatchSync(@Nullable JSONObject tileData, View view)
+    {
+        TileFrame frame = null;
+        if (tileData != null)
+        {
+            try
+            {
+                frame = TileJson.read(tileData);
+                if (frame.version <= m_syncVersion)
+                {
+                    frame = null;
+                }
+            } catch (JSONException e)
+            {
+                e.printStackTrace();
             }
         }
+
+        completeSyncEdits(frame, m_syncVersion, view);
     }
 
     /**
      * Apply a synchronized image from the server to this tile.
      *
-     * @param syncedImg
-     *  The updated image.
-     * @param version
-     *  Version code of this image.
+     * @param frame
+     *  The updated image or patch, or null if there is no update.
+     * @param baseVersion
+     *  Version the request was made against. Patches only apply on top of
+     *  it.
      */
-    private void completeSyncEdits(Bitmap syncedImg, int version, View view)
+    private void completeSyncEdits(@Nullable TileFrame frame, int baseVersion, View view)
     {
+        if (m_isRecycled)
+        {
+            // Tile was unloaded while syncing.
+            return;
+        }
+
         if (m_syncState.compareAndSet(SYNCING, COMPLETING_SYNC))
         {
-            if (syncedImg != null)
+            Metrics.SYNC_LATENCY.recordSince(m_syncStart);
+            boolean isApplied = false;
+            if (frame != null && frame.isPatch)
+            {
+                isApplied = m_syncVersion == baseVersion && applyPatch(frame);
+            }
+            else if (frame != null)
+            {
+                isApplied = setSyncedData(frame.data);
+            }
+
+            // Tiles that change get polled more often.
+            if (isApplied)
             {
-                m_syncedLayerCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-                m_syncedLayerCanvas.drawBitmap(syncedImg, 0, 0, null);
-                syncedImg.recycle();
-                m_syncVersion = version;
+                m_syncVersion = frame.version;
+                dropProxy();
+                m_syncInterval.onActivity(SystemClock.uptimeMillis());
 
                 if (view != null)
                 {
                     view.invalidate();
                 }
             }
+            else
+            {
+                m_syncInterval.onQuiet(SystemClock.uptimeMillis());
+            }
 
             m_syncState.set(NOT_SYNCING);
         }
     }
 
-    private class PostTileUpdateTask extends AsyncTask<String, Void, JSONObject>
+    /**
+     * Replace part of the synced layer with a patch from the server.
+     *
+     * @return
+     *  True if the patch was applied.
+     */
+    private boolean applyPatch(TileFrame patch)
+    {
+        if (patch.data == null)
+        {
+            return false;
+        }
+        // Patches are odd sizes, so they skip the bitmap pool.
+        Bitmap img = BitmapFactory.decodeByteArray(patch.data, 0, patch.data.length);
+        if (img == null)
+        {
+            return false;
+        }
+        if (   patch.left < 0 || patch.top < 0
+            || patch.left + img.getWidth() > TILE_SIZE
+            || patch.top + img.getHeight() > TILE_SIZE )
+        {
+            // Not for this tile; drawing it would change nothing.
+            img.recycle();
+            return false;
+        }
+
+        ensureSyncedLayer();
+        m_syncedLayerCanvas.save();
+        m_syncedLayerCanvas.clipRect(
+                patch.left, patch.top,
+                patch.left + img.getWidth(), patch.top + img.getHeight()
+        );
+        m_syncedLayerCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        m_syncedLayerCanvas.drawBitmap(img, patch.left, patch.top, null);
+        m_syncedLayerCanvas.restore();
+        img.recycle();
+
+        markStale();
+        return true;
+    }
+
+    /**
+     * Read the response to a tile request, as a frame or as JSON.
+     *
+     * @return
+     *  The tile, or null if the response holds none.
+     */
+    @Nullable
+    static TileFrame readResponse(HttpURLConnection conn) throws IOException
+    {
+        TileUpload.readCapabilities(conn);
+        if (TileFrame.isFrame(conn.getContentType()))
+        {
+            InputStream is = Http.getInputStream(conn);
+            TileFrame frame = TileFrame.read(is, Http.getContentLength(conn));
+            is.close();
+            return frame;
+        }
+
+        String result = Http.readString(conn);
+        try
+        {
+            return TileJson.read(new JSONObject(result));
+        } catch (JSONException e)
+        {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private class PostTileUpdateTask extends SyncScheduler.Job<TileFrame>
+        implements TileUpload.Image
     {
         Bitmap m_img;
+        Rect m_editRect;
         int m_version;
         WeakReference<View> m_view;
-        String theUrl = "";
-
-        public PostTileUpdateTask(Bitmap img, int version, View view)
+        String theUrl;
+
+        /**
+         * @param img
+         *  The draw layer.
+         * @param editRect
+         *  Region of img with edits. Only this region is uploaded if the
+         *  server takes patches.
+         */
+        public PostTileUpdateTask(Bitmap img, Rect editRect, int version, View view, String url)
         {
-            m_img = Bitmap.createBitmap(img);
+            // The whole layer is kept in case the server turns a patch down.
+            m_img = BitmapPool.INSTANCE.acquire(img.getWidth(), img.getHeight());
+            new Canvas(m_img).drawBitmap(img, 0, 0, null);
+            m_editRect = new Rect(editRect);
             m_version = version;
             m_view = new WeakReference<>(view);
+            theUrl = url;
         }
 
         @Override
-        protected JSONObject doInBackground(String... params)
+        public boolean isPatch()
         {
-            theUrl = params[0];
+            return !m_editRect.isEmpty()
+                    && (m_editRect.width() < m_img.getWidth() || m_editRect.height() < m_img.getHeight());
+        }
 
-            URL apiURL;
-            try
-            {
-                apiURL = new URL(theUrl);
-            } catch (MalformedURLException e)
+        @Override
+        public int getLeft()
+        {
+            return m_editRect.left;
+        }
+
+        @Override
+        public int getTop()
+        {
+            return m_editRect.top;
+        }
+
+        @Override
+        public void writePng(OutputStream os, boolean patch) throws IOException
+        {
+            if (!patch)
             {
-                e.printStackTrace();
-                return null;
+                m_img.compress(Bitmap.CompressFormat.PNG, 100, os);
+                return;
             }
-
-            String postData = null;
-            ByteArrayOutputStream data = new ByteArrayOutputStream();
-            m_img.compress(
-                    Bitmap.CompressFormat.PNG,
-                    100,
-                    new Base64OutputStream(data, Base64.NO_WRAP)
+            Bitmap part = Bitmap.createBitmap(
+                    m_img, m_editRect.left, m_editRect.top, m_editRect.width(), m_editRect.height()
             );
-            m_img.recycle();
+            part.compress(Bitmap.CompressFormat.PNG, 100, os);
+            part.recycle();
+        }
+
+        @Override
+        protected TileFrame doInBackground()
+        {
+            TileFrame output = null;
+            long start = System.nanoTime();
             try
             {
-                JSONObject obj = new JSONObject();
-                obj.put("version", m_version);
-                obj.put("data", data);
-                postData = obj.toString();
-            } catch (JSONException e)
+                output = finish(TileUpload.post(theUrl, m_version, this));
+
+            } catch (IOException e)
             {
+                Metrics.SYNC_ERRORS.increment();
                 e.printStackTrace();
+            } finally
+            {
+                BitmapPool.INSTANCE.release(m_img);
+                Metrics.SYNC_ROUND_TRIP.recordSince(start);
+            }
+
+            return output;
+        }
+
+        private TileFrame finish(HttpURLConnection conn) throws IOException
+        {
+            TileFrame output = null;
+            if (conn.getResponseCode() == HttpURLConnection.HTTP_OK)
+            {
+                output = readResponse(conn);
             }
-            if (postData == null)
+            else
             {
-                return null;
+                Metrics.SYNC_ERRORS.increment();
+                Log.e("PostTileUpdateTask", "HTTP error " + conn.getResponseCode());
+                Http.discard(conn);
             }
+            return output;
+        }
+
+        @Override
+        protected void onPostExecute(TileFrame tileData)
+        {
+            completeSyncEdits(tileData, m_version, m_view.get());
+        }
+    }
+
+    private class GetTileSyncTask extends SyncScheduler.Job<TileFrame>
+    {
+        int m_version;
+        WeakReference<View> m_view;
+        String theUrl;
+
+        public GetTileSyncTask(int version, View view, String url)
+        {
+            m_version = version;
+            m_view = new WeakReference<>(view);
+            theUrl = url + "/" + m_version;
+        }
 
-            JSONObject output = null;
+        @Override
+        protected TileFrame doInBackground()
+        {
+            TileFrame output = null;
+            long start = System.nanoTime();
 
             try
             {
-                HttpURLConnection conn = (HttpURLConnection)apiURL.openConnection();
-                conn.setRequestMethod("POST");
-                conn.setDoOutput(true);
-                conn.setConnectTimeout(10000); // 10 sec
-                conn.setReadTimeout(10000);    // 10 sec
-                conn.setRequestProperty("Content-Type", "application/json; charset=utf8");
-
-                OutputStream os = conn.getOutputStream();
-                BufferedWriter writer = new BufferedWriter(
-                        new OutputStreamWriter(os, "UTF-8")
-                );
-                writer.write(postData);
-                writer.flush();
-                writer.close();
-                os.close();
+                HttpURLConnection conn = Http.open(theUrl);
+                conn.setRequestProperty("Accept", TileFrame.ACCEPT);
+                // Servers that tag tiles by version answer 304 when ours is current.
+                Http.setIfNoneMatch(conn, m_version);
 
-                if (conn.getResponseCode() == HttpURLConnection.HTTP_OK)
+                int status = conn.getResponseCode();
+                if (status == HttpURLConnection.HTTP_OK)
                 {
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream())
-                    );
-                    StringBuilder result = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null)
-                    {
-                        result.append(line);
-                    }
-
-                    try
-                    {
-                        output = new JSONObject(result.toString());
-                    } catch (JSONException e)
-                    {
-                        e.printStackTrace();
-                    }
+                    output = readResponse(conn);
                 }
                 else
                 {
-                    Log.e("PostTileUpdateTask", "HTTP error " + conn.getResponseCode());
+                    if (   status != HttpURLConnection.HTTP_NO_CONTENT
+                        && status != HttpURLConnection.HTTP_NOT_MODIFIED )
+                    {
+                        Metrics.SYNC_ERRORS.increment();
+                        Log.e("GetTileSyncTask", "HTTP error " + status);
+                    }
+                    Http.discard(conn);
                 }
-                conn.disconnect();
 
             } catch (IOException e)
             {
+                Metrics.SYNC_ERRORS.increment();
                 e.printStackTrace();
             }
 
+            Metrics.SYNC_ROUND_TRIP.recordSince(start);
             return output;
         }
 
         @Override
-        protected void onPostExecute(JSONObject tileData)
+        protected void onPostExecute(TileFrame tileData)
         {
-            int version = 0;
-            Bitmap data = null;
-            if (tileData != null)
+            if (m_pendingDownload == this)
             {
-                try
-                {
-                    version = tileData.getInt("version");
-                    byte[] rawData = Base64.decode(tileData.getString("data"), Base64.DEFAULT);
-                    data = BitmapFactory.decodeByteArray(rawData, 0, rawData.length);
-                } catch (JSONException e)
-                {
-                    e.printStackTrace();
-                }
+                m_pendingDownload = null;
+            }
+            if (tileData != null && tileData.version <= m_version)
+            {
+                tileData = null;
             }
 
-            completeSyncEdits(data, version, m_view.get());
+            completeSyncEdits(tileData, m_version, m_view.get());
         }
     }
 
-    private class GetTileSyncTask extends AsyncTask<String, Void, JSONObject>
+    private class LoadTileTask extends SyncScheduler.Job<CacheSnapshot>
     {
-        int m_version;
+        String m_key;
+        String m_proxyUrl;
         WeakReference<View> m_view;
-        String theUrl = "";
+        CacheWriter<?> m_cacheWriter;
+        SyncScheduler m_network;
+        int m_priority;
 
-        public GetTileSyncTask(int version, View view)
+        public LoadTileTask(String key, String proxyUrl, View view, CacheWriter<?> cacheWriter,
+                            SyncScheduler network, int priority)
         {
-            m_version = version;
+            m_key = key;
+            m_proxyUrl = proxyUrl;
             m_view = new WeakReference<>(view);
+            m_cacheWriter = cacheWriter;
+            m_network = network;
+            m_priority = priority;
         }
 
         @Override
-        protected JSONObject doInBackground(String... params)
+        protected CacheSnapshot doInBackground()
         {
-            theUrl = params[0] + "/" + m_version;
-
-            URL apiURL;
             try
             {
-                apiURL = new URL(theUrl);
-            } catch (MalformedURLException e)
+                return readCacheEntry(m_cacheWriter.read(m_key));
+            } catch (OutOfMemoryError e)
             {
-                e.printStackTrace();
+                // Start blank; the tile syncs from the server instead.
+                Log.w("LoadTileTask", "Out of memory loading tile", e);
+                BitmapPool.INSTANCE.trim();
                 return null;
             }
+        }
 
-            JSONObject output = null;
-
-            try
-            {
-                HttpURLConnection conn = (HttpURLConnection)apiURL.openConnection();
-                conn.setConnectTimeout(10000);
-                conn.setReadTimeout(10000);
-
-                if (conn.getResponseCode() == HttpURLConnection.HTTP_OK)
-                {
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream())
-                    );
-                    StringBuilder result = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null)
-                    {
-                        result.append(line);
-                    }
-
-                    try
-                    {
-                        output = new JSONObject(result.toString());
-                    } catch (JSONException e)
-                    {
-                        e.printStackTrace();
-                    }
-                }
-                else if ( conn.getResponseCode() != 204)
-                {
-                    Log.e("GetTileSyncTask", "HTTP error " + conn.getResponseCode());
-                }
-                conn.disconnect();
-
-            } catch (IOException e)
+        @Override
+        protected void onPostExecute(CacheSnapshot snapshot)
+        {
+            View view = m_view.get();
+            completeLoad(snapshot, view);
+            if (!m_isRecycled && m_syncVersion == 0
+                    && PROXIES.isAvailable(SystemClock.uptimeMillis()))
             {
-                e.printStackTrace();
+                // Nothing cached. A proxy is one small round trip, well
+                // ahead of the first full sync.
+                beginProxyLoad(m_proxyUrl, view, m_network, m_priority);
             }
+        }
+    }
 
-            return output;
+    private class LoadProxyTask extends SyncScheduler.Job<Bitmap>
+    {
+        String m_url;
+        WeakReference<View> m_view;
+
+        public LoadProxyTask(String url, View view)
+        {
+            m_url = url;
+            m_view = new WeakReference<>(view);
         }
 
         @Override
-        protected void onPostExecute(JSONObject tileData)
+        protected Bitmap doInBackground()
         {
-            int version = 0;
-            Bitmap data = null;
-            if (tileData != null)
-            {
-                try
-                {
-                    version = tileData.getInt("version");
-                    if (version > m_version)
-                    {
-                        byte[] rawData = Base64.decode(tileData.getString("data"), Base64.DEFAULT);
-                        data = BitmapFactory.decodeByteArray(rawData, 0, rawData.length);
-                    }
-                } catch (JSONException e)
-                {
-                    e.printStackTrace();
-                }
-            }
+            return fetchProxy(m_url);
+        }
 
-            completeSyncEdits(data, version, m_view.get());
+        @Override
+        protected void onPostExecute(Bitmap proxy)
+        {
+            completeProxyLoad(proxy, m_view.get());
         }
     }
 }
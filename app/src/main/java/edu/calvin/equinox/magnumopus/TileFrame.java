@@ -0,0 +1,176 @@
+package edu.calvin.equinox.magnumopus;
+
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Binary wire format for a single tile.
+ *
+ * A frame is an 8 byte header, the magic "EQT1" followed by the tile's
+ * version as a big endian int, then the encoded image (PNG, JPEG or
+ * SolidColor data) as raw bytes until the end of the body. A patch frame
+ * covers only part of the tile: its magic is "EQTP", and the version is
+ * followed by the patch's left and top offsets in the tile. Frames are
+ * streamed straight to and from the connection, with none of the Base64 and
+ * JSON copies of the JSON format. Clients ask for frames with the Accept
+ * header and fall back to JSON when the server answers with it.
+ */
+
+public final class TileFrame
+{
+    /**
+     * Content type of a tile frame.
+     */
+    public static final String CONTENT_TYPE = "application/x-equinox-tile";
+
+    /**
+     * Accept header preferring frames over JSON.
+     */
+    public static final String ACCEPT = CONTENT_TYPE + ", application/json;q=0.5";
+
+    /**
+     * Length of the frame header.
+     */
+    public static final int HEADER_LENGTH = 8;
+    /**
+     * Length of the patch frame header.
+     */
+    public static final int PATCH_HEADER_LENGTH = 16;
+
+    private static final int MAGIC = ('E' << 24) | ('Q' << 16) | ('T' << 8) | '1';
+    private static final int PATCH_MAGIC = ('E' << 24) | ('Q' << 16) | ('T' << 8) | 'P';
+
+    /**
+     * Version code of the tile.
+     */
+    public final int version;
+
+    /**
+     * Encoded image, or null if the frame only carries a version.
+     */
+    @Nullable
+    public final byte[] data;
+
+    /**
+     * True if data only covers part of the tile.
+     */
+    public final boolean isPatch;
+    /**
+     * Position of a patch in the tile.
+     */
+    public final int left, top;
+
+    public TileFrame(int version, @Nullable byte[] data)
+    {
+        this(version, data, false, 0, 0);
+    }
+
+    public TileFrame(int version, @Nullable byte[] data, boolean isPatch, int left, int top)
+    {
+        this.version = version;
+        this.data = data;
+        this.isPatch = isPatch;
+        this.left = left;
+        this.top = top;
+    }
+
+    /**
+     * Check if a response holds a frame.
+     *
+     * @param contentType
+     *  Content-Type header of the response; may be null.
+     */
+    public static boolean isFrame(@Nullable String contentType)
+    {
+        return contentType != null && contentType.startsWith(CONTENT_TYPE);
+    }
+
+    /**
+     * Write a frame header. The caller then writes the encoded image to the
+     * same stream.
+     */
+    public static void writeHeader(OutputStream os, int version) throws IOException
+    {
+        writeInt(os, MAGIC);
+        writeInt(os, version);
+    }
+
+    /**
+     * Write a patch frame header. The caller then writes the encoded patch
+     * to the same stream.
+     *
+     * @param left, top
+     *  Position of the patch in the tile.
+     */
+    public static void writePatchHeader(OutputStream os, int version, int left, int top)
+            throws IOException
+    {
+        writeInt(os, PATCH_MAGIC);
+        writeInt(os, version);
+        writeInt(os, left);
+        writeInt(os, top);
+    }
+
+    private static void writeInt(OutputStream os, int value) throws IOException
+    {
+        os.write(value >>> 24);
+        os.write(value >>> 16);
+        os.write(value >>> 8);
+        os.write(value);
+    }
+
+    /**
+     * Read a whole frame.
+     *
+     * @param is
+     *  Stream positioned at the frame header.
+     * @param contentLength
+     *  Length of the frame, or -1 to read to the end of the stream.
+     *
+     * @return
+     *  The frame.
+     *
+     * @throws IOException
+     *  If the stream does not hold a frame.
+     */
+    public static TileFrame read(InputStream is, int contentLength) throws IOException
+    {
+        DataInputStream in = new DataInputStream(is);
+        int magic = in.readInt();
+        if (magic != MAGIC && magic != PATCH_MAGIC)
+        {
+            throw new IOException("Not a tile frame");
+        }
+        boolean isPatch = magic == PATCH_MAGIC;
+        int version = in.readInt();
+        int left = isPatch ? in.readInt() : 0;
+        int top = isPatch ? in.readInt() : 0;
+        int headerLength = isPatch ? PATCH_HEADER_LENGTH : HEADER_LENGTH;
+
+        byte[] data;
+        if (contentLength >= headerLength)
+        {
+            // Known size, so read straight into the final array.
+            data = new byte[contentLength - headerLength];
+            in.readFully(data);
+        }
+        else
+        {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(16 * 1024);
+            byte[] chunk = new byte[8 * 1024];
+            int n;
+            while ((n = in.read(chunk)) > 0)
+            {
+                buf.write(chunk, 0, n);
+            }
+            data = buf.toByteArray();
+        }
+
+        return new TileFrame(version, data.length > 0 ? data : null, isPatch, left, top);
+    }
+}
@@ -0,0 +1,47 @@
+package edu.calvin.equinox.magnumopus;
+
+/**
+ * Maps canvas positions onto the grid of tiles.
+ *
+ * Plain Java, so the benchmarks can run it off the device.
+ */
+
+public final class TileGrid
+{
+    /**
+     * Pixel dimension of each tile.
+     */
+    public static final int TILE_SIZE = 256;
+
+    private TileGrid()
+    {
+    }
+
+    /**
+     * Convert a position to the column (or row) of the tile containing it.
+     *
+     * @param pos
+     *  Position to convert.
+     *
+     * @return
+     *  The tile index.
+     */
+    public static int toTileIndex(int pos)
+    {
+        return align(pos) / TILE_SIZE;
+    }
+
+    /**
+     * Align a position to the nearest multiple of TILE_SIZE <= pos.
+     *
+     * @param pos
+     *  Position to align.
+     *
+     * @return
+     *  The aligned position.
+     */
+    public static int align(int pos)
+    {
+        return (pos < 0 ? pos + 1 - TILE_SIZE : pos) / TILE_SIZE * TILE_SIZE;
+    }
+}
@@ -0,0 +1,371 @@
+package edu.calvin.equinox.magnumopus;
+
+/**
+ * Open addressing hash table of tiles keyed by (column, row).
+ *
+ * The column and row are packed into a single long, so lookups do not box or
+ * allocate. Removal leaves a tombstone instead of shifting entries, so it is
+ * safe to remove the current slot while iterating.
+ *
+ * @param <T>
+ *  Type of the stored tiles.
+ */
+
+public class TileIndex<T>
+{
+    /**
+     * Callback for tiles entering or leaving the index.
+     */
+    public interface Listener<T>
+    {
+        void onTileAdded(int col, int row, T tile);
+
+        void onTileRemoved(int col, int row, T tile);
+    }
+
+    /**
+     * Callback for range iteration.
+     */
+    public interface Visitor<T>
+    {
+        void visit(int col, int row, T tile);
+    }
+
+    /**
+     * Marker for a slot whose tile has been removed.
+     */
+    private static final Object TOMBSTONE = new Object();
+
+    /**
+     * Packed (column, row) of each slot.
+     */
+    private long[] m_keys;
+
+    /**
+     * Tile in each slot; null for never used slots.
+     */
+    private Object[] m_values;
+
+    /**
+     * Number of live tiles.
+     */
+    private int m_size;
+
+    /**
+     * Number of tombstone slots.
+     */
+    private int m_tombstones;
+
+    private Listener<T> m_listener;
+
+    /**
+     * @param expectedSize
+     *  Number of tiles expected to be resident at once.
+     */
+    public TileIndex(int expectedSize)
+    {
+        int capacity = 8;
+        while (capacity * 3 < expectedSize * 4)
+        {
+            capacity *= 2;
+        }
+        m_keys = new long[capacity];
+        m_values = new Object[capacity];
+    }
+
+    public void setListener(Listener<T> listener)
+    {
+        m_listener = listener;
+    }
+
+    /**
+     * Pack a tile column and row into one key.
+     */
+    public static long pack(int col, int row)
+    {
+        return ((long)col << 32) | (row & 0xffffffffL);
+    }
+
+    public static int unpackCol(long key)
+    {
+        return (int)(key >> 32);
+    }
+
+    public static int unpackRow(long key)
+    {
+        return (int)key;
+    }
+
+    public int size()
+    {
+        return m_size;
+    }
+
+    public boolean isEmpty()
+    {
+        return m_size == 0;
+    }
+
+    /**
+     * Look up a tile.
+     *
+     * @return
+     *  The tile, or null if it is not resident.
+     */
+    public T get(int col, int row)
+    {
+        int slot = find(pack(col, row));
+        return slot < 0 ? null : tileAt(slot);
+    }
+
+    /**
+     * Insert or replace a tile. Must not be called while iterating.
+     *
+     * @return
+     *  The tile previously at (col, row), or null.
+     */
+    public T put(int col, int row, T tile)
+    {
+        if (tile == null)
+        {
+            throw new IllegalArgumentException("tile must not be null");
+        }
+
+        long key = pack(col, row);
+        int slot = find(key);
+        T prev = null;
+        if (slot >= 0)
+        {
+            prev = tileAt(slot);
+            m_values[slot] = tile;
+            if (m_listener != null)
+            {
+                m_listener.onTileRemoved(col, row, prev);
+            }
+        }
+        else
+        {
+            if ((m_size + m_tombstones + 1) * 4 > m_keys.length * 3)
+            {
+                rehash(m_size * 2 >= m_keys.length ? m_keys.length * 2 : m_keys.length);
+            }
+
+            int mask = m_keys.length - 1;
+            slot = hash(key) & mask;
+            while (m_values[slot] != null && m_values[slot] != TOMBSTONE)
+            {
+                slot = (slot + 1) & mask;
+            }
+            if (m_values[slot] == TOMBSTONE)
+            {
+                --m_tombstones;
+            }
+            m_keys[slot] = key;
+            m_values[slot] = tile;
+            ++m_size;
+        }
+
+        if (m_listener != null)
+        {
+            m_listener.onTileAdded(col, row, tile);
+        }
+        return prev;
+    }
+
+    /**
+     * Remove a tile.
+     *
+     * @return
+     *  The removed tile, or null if it was not resident.
+     */
+    public T remove(int col, int row)
+    {
+        int slot = find(pack(col, row));
+        if (slot < 0)
+        {
+            return null;
+        }
+        T tile = tileAt(slot);
+        removeAt(slot);
+        return tile;
+    }
+
+    /**
+     * Remove every tile, notifying the listener of each.
+     */
+    public void clear()
+    {
+        for (int slot = firstSlot(); slot >= 0; slot = nextSlot(slot))
+        {
+            removeAt(slot);
+        }
+        m_values = new Object[m_keys.length];
+        m_tombstones = 0;
+    }
+
+    /************************** Slot iteration ****************************/
+
+    /**
+     * Start iterating over resident tiles.
+     *
+     * <pre>
+     * for (int slot = index.firstSlot(); slot >= 0; slot = index.nextSlot(slot))
+     * </pre>
+     *
+     * @return
+     *  First occupied slot, or -1 if empty.
+     */
+    public int firstSlot()
+    {
+        return nextSlot(-1);
+    }
+
+    /**
+     * @return
+     *  Next occupied slot after slot, or -1 if there are no more.
+     */
+    public int nextSlot(int slot)
+    {
+        for (++slot; slot < m_values.length; ++slot)
+        {
+            Object value = m_values[slot];
+            if (value != null && value != TOMBSTONE)
+            {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    public int colAt(int slot)
+    {
+        return unpackCol(m_keys[slot]);
+    }
+
+    public int rowAt(int slot)
+    {
+        return unpackRow(m_keys[slot]);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T tileAt(int slot)
+    {
+        return (T)m_values[slot];
+    }
+
+    /**
+     * Remove the tile in an occupied slot. Safe to call while iterating.
+     */
+    public void removeAt(int slot)
+    {
+        T tile = tileAt(slot);
+        m_values[slot] = TOMBSTONE;
+        --m_size;
+        ++m_tombstones;
+        if (m_listener != null)
+        {
+            m_listener.onTileRemoved(colAt(slot), rowAt(slot), tile);
+        }
+    }
+
+    /**
+     * Visit every resident tile with colMin <= col <= colMax and
+     * rowMin <= row <= rowMax.
+     */
+    public void forEachInRange(int colMin, int rowMin, int colMax, int rowMax, Visitor<T> visitor)
+    {
+        if (colMin > colMax || rowMin > rowMax)
+        {
+            return;
+        }
+
+        long cells = ((long)colMax - colMin + 1) * ((long)rowMax - rowMin + 1);
+        if (cells <= m_size)
+        {
+            // Range is small; probe each cell.
+            for (int col = colMin; col <= colMax; ++col)
+            {
+                for (int row = rowMin; row <= rowMax; ++row)
+                {
+                    int slot = find(pack(col, row));
+                    if (slot >= 0)
+                    {
+                        visitor.visit(col, row, tileAt(slot));
+                    }
+                }
+            }
+        }
+        else
+        {
+            // Range is large; scan resident tiles.
+            for (int slot = firstSlot(); slot >= 0; slot = nextSlot(slot))
+            {
+                int col = colAt(slot);
+                int row = rowAt(slot);
+                if (col >= colMin && col <= colMax && row >= rowMin && row <= rowMax)
+                {
+                    visitor.visit(col, row, tileAt(slot));
+                }
+            }
+        }
+    }
+    /**********************************************************************/
+
+    /**
+     * @return
+     *  Slot holding key, or -1 if absent.
+     */
+    private int find(long key)
+    {
+        int mask = m_keys.length - 1;
+        int slot = hash(key) & mask;
+        Object value;
+        while ((value = m_values[slot]) != null)
+        {
+            if (value != TOMBSTONE && m_keys[slot] == key)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = m_keys;
+        Object[] oldValues = m_values;
+        m_keys = new long[capacity];
+        m_values = new Object[capacity];
+        m_tombstones = 0;
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; ++i)
+        {
+            Object value = oldValues[i];
+            if (value != null && value != TOMBSTONE)
+            {
+                int slot = hash(oldKeys[i]) & mask;
+                while (m_values[slot] != null)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                m_keys[slot] = oldKeys[i];
+                m_values[slot] = value;
+            }
+        }
+    }
+
+    /**
+     * Scramble a packed key so neighboring tiles spread across the table.
+     */
+    private static int hash(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+}
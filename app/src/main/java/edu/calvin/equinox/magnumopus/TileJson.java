@@ -0,0 +1,70 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * JSON encoding of tiles, for servers that do not take TileFrames. Images
+ * travel Base64 encoded in a "data" field.
+ *
+ * Free of Bitmaps and connections, so the benchmarks can run it off the
+ * device.
+ */
+
+public final class TileJson
+{
+    private TileJson()
+    {
+    }
+
+    /**
+     * Extract the tile from a JSON server response. Uniform tiles may be
+     * sent as just a "color", or as SolidColor data. Patches carry their
+     * position in the tile as "patch_x" and "patch_y"; plain "x" and "y"
+     * are the tile's position on the canvas, as in batch responses.
+     */
+    public static TileFrame read(JSONObject tileData) throws JSONException
+    {
+        int version = tileData.getInt("version");
+        if (tileData.has("color"))
+        {
+            return new TileFrame(version, SolidColor.encode((int)tileData.getLong("color")));
+        }
+
+        byte[] data = Base64Codec.decode(tileData.getString("data"));
+        if (tileData.has("patch_x"))
+        {
+            return new TileFrame(version, data, true, tileData.getInt("patch_x"), tileData.getInt("patch_y"));
+        }
+        return new TileFrame(version, data);
+    }
+
+    /**
+     * Build the body of a tile upload.
+     *
+     * @param png
+     *  The tile, or the patch, as a PNG.
+     * @param version
+     *  Version the edits were made against.
+     * @param isPatch
+     *  True if png only covers part of the tile.
+     * @param x, y
+     *  Position of a patch in the tile.
+     *
+     * @return
+     *  The request body.
+     */
+    public static String writeUpdate(byte[] png, int version, boolean isPatch, int x, int y)
+            throws JSONException
+    {
+        JSONObject obj = new JSONObject();
+        obj.put("version", version);
+        obj.put("data", Base64Codec.encode(png));
+        if (isPatch)
+        {
+            obj.put("patch_x", x);
+            obj.put("patch_y", y);
+        }
+        return obj.toString();
+    }
+}
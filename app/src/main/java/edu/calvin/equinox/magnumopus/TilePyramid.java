@@ -0,0 +1,674 @@
+package edu.calvin.equinox.magnumopus;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.View;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Zoomed out views of the canvas.
+ *
+ * Level 0 is the canvas itself, made of editable Tiles. Each tile of level
+ * L covers 2x2 tiles of level L-1, downsampled into one TILE_SIZE bitmap,
+ * so the number of tiles on screen stays about the same at any zoom.
+ * Levels above 0 are read only. A level tile is loaded in the background:
+ * from the disk cache, else from the server, else built from its children
+ * in the disk cache. Disk reads, decoding and building run on the loader,
+ * and server requests on the network scheduler. Built and fetched tiles are cached. When a level 0
+ * tile is saved with a new version, the level tiles above it are dropped
+ * and built again from it; others are rebuilt once older than MAX_AGE_S,
+ * to pick up changes made elsewhere.
+ */
+
+public class TilePyramid implements TileIndex.Listener<TilePyramid.LevelTile>
+{
+    /**
+     * Highest level. A tile of this level covers 2^MAX_LEVEL tiles across.
+     */
+    public static final int MAX_LEVEL = 4;
+
+    /**
+     * Age, in seconds, after which a cached level tile is rebuilt.
+     */
+    static final int MAX_AGE_S = 10 * 60;
+
+    /**
+     * The server's level tile endpoint, which may be missing.
+     */
+    private static final OptionalEndpoint LEVELS = new OptionalEndpoint();
+
+    /**
+     * Keys of level tiles whose cached copies are out of date.
+     */
+    private static final Set<String> m_staleKeys = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * A tile of a level above 0.
+     */
+    static final class LevelTile
+    {
+        /**
+         * The downsampled image, or null until loaded or if there is none.
+         */
+        Bitmap m_bitmap;
+        SyncScheduler.Job<?> m_load;
+    }
+
+    private final TileIndex<LevelTile> m_tiles;
+    private final SyncScheduler m_loader;
+    private final SyncScheduler m_network;
+    private final CacheWriter<?> m_cacheWriter;
+    private final WeakReference<View> m_view;
+    private final Paint m_paint;
+    private final RectF m_dst;
+
+    private int m_canvasID;
+    private int m_level;
+
+    /**
+     * @param loader
+     *  Scheduler to read, decode and build tiles on.
+     * @param network
+     *  Scheduler to fetch tiles from the server on.
+     * @param cacheWriter
+     *  Writer of level 0 tiles to the disk cache, read through when building.
+     * @param view
+     *  View to redraw when tiles load.
+     */
+    public TilePyramid(SyncScheduler loader, SyncScheduler network, CacheWriter<?> cacheWriter, View view)
+    {
+        m_tiles = new TileIndex<>(64);
+        m_tiles.setListener(this);
+        m_loader = loader;
+        m_network = network;
+        m_cacheWriter = cacheWriter;
+        m_view = new WeakReference<>(view);
+        m_paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        m_dst = new RectF();
+    }
+
+    /**
+     * Choose the level to display at a zoom.
+     *
+     * @param scale
+     *  Screen pixels per canvas pixel.
+     *
+     * @return
+     *  The level whose tiles are drawn at between half and full size.
+     */
+    public static int levelFor(float scale)
+    {
+        int level = 0;
+        while (level < MAX_LEVEL && scale * (1 << (level + 1)) <= 1)
+        {
+            ++level;
+        }
+        return level;
+    }
+
+    /**
+     * @return
+     *  Canvas pixels covered by a tile of a level, across.
+     */
+    public static int spanOf(int level)
+    {
+        return Tile.TILE_SIZE << level;
+    }
+
+    /**
+     * @return
+     *  Column (or row) of the tile of a level containing a position.
+     */
+    public static int toLevelIndex(int pos, int level)
+    {
+        int span = spanOf(level);
+        return (pos < 0 ? pos + 1 - span : pos) / span;
+    }
+
+    /**
+     * @return
+     *  Key of a tile in the disk cache. Level 0 keys are those of Tiles.
+     */
+    public static String cacheKey(int canvasID, int level, int col, int row)
+    {
+        if (level == 0)
+        {
+            return canvasID + "-" + col * Tile.TILE_SIZE + "-" + row * Tile.TILE_SIZE;
+        }
+        return canvasID + "-L" + level + "-" + col + "-" + row;
+    }
+
+    /**
+     * @return
+     *  Keys of the tiles of levels 1 to MAX_LEVEL above a level 0 tile.
+     */
+    static String[] ancestorKeys(int canvasID, int col, int row)
+    {
+        String[] keys = new String[MAX_LEVEL];
+        for (int level = 1; level <= MAX_LEVEL; ++level)
+        {
+            keys[level - 1] = cacheKey(canvasID, level, col >> level, row >> level);
+        }
+        return keys;
+    }
+
+    /**
+     * @return
+     *  The level currently loaded, or 0 if none is.
+     */
+    public int getLevel()
+    {
+        return m_level;
+    }
+
+    /**
+     * @return
+     *  Number of level tiles in memory.
+     */
+    public int size()
+    {
+        return m_tiles.size();
+    }
+
+    /**
+     * Keep the tiles of a level in a range loaded, and no others.
+     *
+     * @param level
+     *  Level to load, above 0.
+     */
+    public void setRange(int canvasID, int level, int colMin, int rowMin, int colMax, int rowMax)
+    {
+        if (canvasID != m_canvasID || level != m_level)
+        {
+            m_tiles.clear();
+            m_canvasID = canvasID;
+            m_level = level;
+        }
+
+        for (int slot = m_tiles.firstSlot(); slot >= 0; slot = m_tiles.nextSlot(slot))
+        {
+            int col = m_tiles.colAt(slot);
+            int row = m_tiles.rowAt(slot);
+            if (col < colMin || col > colMax || row < rowMin || row > rowMax)
+            {
+                m_tiles.removeAt(slot);
+            }
+        }
+
+        for (int col = colMin; col <= colMax; ++col)
+        {
+            for (int row = rowMin; row <= rowMax; ++row)
+            {
+                if (m_tiles.get(col, row) == null)
+                {
+                    LevelTile tile = new LevelTile();
+                    m_tiles.put(col, row, tile);
+                    beginLoad(tile, col, row);
+                }
+            }
+        }
+    }
+
+    private void beginLoad(LevelTile tile, int col, int row)
+    {
+        if (tile.m_load != null)
+        {
+            tile.m_load.cancel();
+        }
+        tile.m_load = new LoadLevelTask(tile, m_canvasID, m_level, col, row);
+        m_loader.submit(
+                tile.m_load, cacheKey(m_canvasID, m_level, col, row),
+                SyncScheduler.PRIORITY_VISIBLE
+        );
+    }
+
+    /**
+     * Drop the level tiles above a level 0 tile that changed, so they are
+     * built again with the change. Shown ones are reloaded now, and the
+     * rest when next shown.
+     */
+    public void invalidate(int canvasID, int col, int row)
+    {
+        String[] keys = ancestorKeys(canvasID, col, row);
+        m_staleKeys.addAll(Arrays.asList(keys));
+
+        // Drop them from disk too, in case the app exits before a rebuild.
+        m_loader.submit(new DropTask(keys), keys[0], SyncScheduler.PRIORITY_BUFFER);
+
+        if (canvasID == m_canvasID && m_level > 0)
+        {
+            int levelCol = col >> m_level;
+            int levelRow = row >> m_level;
+            LevelTile tile = m_tiles.get(levelCol, levelRow);
+            if (tile != null)
+            {
+                // The old image stays up until the new one is ready.
+                beginLoad(tile, levelCol, levelRow);
+            }
+        }
+    }
+
+    /**
+     * Unload every level tile.
+     */
+    public void clear()
+    {
+        m_tiles.clear();
+        m_level = 0;
+    }
+
+    /**
+     * Draw the loaded tiles.
+     *
+     * @param left, top
+     *  Canvas position of the top left corner of the screen.
+     * @param scale
+     *  Screen pixels per canvas pixel.
+     */
+    public void draw(Canvas canvas, float left, float top, float scale)
+    {
+        int span = spanOf(m_level);
+        for (int slot = m_tiles.firstSlot(); slot >= 0; slot = m_tiles.nextSlot(slot))
+        {
+            Bitmap bitmap = m_tiles.tileAt(slot).m_bitmap;
+            if (bitmap == null)
+            {
+                continue;
+            }
+            float x = (m_tiles.colAt(slot) * (float)span - left) * scale;
+            float y = (m_tiles.rowAt(slot) * (float)span - top) * scale;
+            m_dst.set(x, y, x + span * scale, y + span * scale);
+            canvas.drawBitmap(bitmap, null, m_dst, m_paint);
+        }
+    }
+
+    @Override
+    public void onTileAdded(int col, int row, LevelTile tile)
+    {
+    }
+
+    @Override
+    public void onTileRemoved(int col, int row, LevelTile tile)
+    {
+        if (tile.m_load != null)
+        {
+            tile.m_load.cancel();
+            tile.m_load = null;
+        }
+        BitmapPool.INSTANCE.release(tile.m_bitmap);
+        tile.m_bitmap = null;
+    }
+
+    /**
+     * Load a level tile from the disk cache, or else build it. Called off
+     * the UI thread; never goes to the server.
+     *
+     * @return
+     *  The tile as a pooled bitmap, or null if nothing below it is known.
+     */
+    @Nullable
+    static Bitmap load(CacheWriter<?> cacheWriter, int canvasID, int level, int col, int row)
+    {
+        Bitmap bitmap = loadCached(cacheKey(canvasID, level, col, row));
+        if (bitmap == null)
+        {
+            bitmap = loadBuilt(cacheWriter, canvasID, level, col, row, null);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Read a level tile from the disk cache. Called off the UI thread.
+     *
+     * @return
+     *  The tile as a pooled bitmap, or null if it is not cached, too old or
+     *  stale.
+     */
+    @Nullable
+    private static Bitmap loadCached(String key)
+    {
+        if (m_staleKeys.contains(key))
+        {
+            return null;
+        }
+        int now = (int)(System.currentTimeMillis() / 1000);
+        TileFrame cached = readFrame(Cache.INSTANCE.get(key));
+        if (cached != null && now - cached.version < MAX_AGE_S)
+        {
+            return decode(cached);
+        }
+        return null;
+    }
+
+    /**
+     * @return
+     *  True if a level tile missing from the disk cache should be asked of
+     *  the server before building it. The server may not have the change
+     *  below a stale tile yet.
+     */
+    private static boolean shouldFetch(String key)
+    {
+        return LEVELS.isAvailable(SystemClock.uptimeMillis()) && !m_staleKeys.contains(key);
+    }
+
+    /**
+     * Decode a level tile fetched from the server, or else build it, and
+     * cache it. Called off the UI thread.
+     *
+     * @param fetched
+     *  The tile from the server, or null to build it.
+     *
+     * @return
+     *  The tile as a pooled bitmap, or null if nothing below it is known.
+     */
+    @Nullable
+    private static Bitmap loadBuilt(CacheWriter<?> cacheWriter, int canvasID, int level, int col, int row,
+                                    @Nullable TileFrame fetched)
+    {
+        String key = cacheKey(canvasID, level, col, row);
+        m_staleKeys.remove(key);
+        Bitmap bitmap = decode(fetched);
+        if (bitmap == null)
+        {
+            bitmap = build(cacheWriter, canvasID, level, col, row);
+        }
+        if (bitmap == null || m_staleKeys.contains(key))
+        {
+            // Not cached if something below changed again while building.
+            return bitmap;
+        }
+
+        // Stamp with the time, so it is rebuilt once old.
+        ByteArrayOutputStream entry = new ByteArrayOutputStream(16 * 1024);
+        try
+        {
+            TileFrame.writeHeader(entry, (int)(System.currentTimeMillis() / 1000));
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, entry);
+            Cache.INSTANCE.put(key, entry.toByteArray());
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return
+     *  URL of a level tile on the server.
+     */
+    private static String levelUrl(int canvasID, int level, int col, int row)
+    {
+        return "http://cs262.cs.calvin.edu:8085/equinox/pyramid/"
+                + canvasID + "/" + level + "/" + col + "/" + row;
+    }
+
+    /**
+     * Ask the server for a level tile. Called off the UI thread.
+     *
+     * @return
+     *  The tile, or null if the server has none.
+     */
+    @Nullable
+    private static TileFrame fetch(String url)
+    {
+        if (!LEVELS.isAvailable(SystemClock.uptimeMillis()))
+        {
+            return null;
+        }
+        try
+        {
+            HttpURLConnection conn = Http.open(url);
+            conn.setRequestProperty("Accept", TileFrame.ACCEPT);
+            int status = conn.getResponseCode();
+            // Without a pyramid on the server, tiles are built here. A 404
+            // only means this tile is not there, e.g. nobody drew under it.
+            LEVELS.onResponse(status, SystemClock.uptimeMillis());
+            if (status == HttpURLConnection.HTTP_OK)
+            {
+                return Tile.readResponse(conn);
+            }
+            Http.discard(conn);
+        } catch (IOException e)
+        {
+            Log.w("TilePyramid", "Could not fetch level tile", e);
+        }
+        return null;
+    }
+
+    /**
+     * Downsample the 2x2 tiles below a level tile. Level 0 tiles are read
+     * through the cache writer, so snapshots still waiting to be written
+     * are seen. Missing children are built in turn, down to level 0.
+     *
+     * @return
+     *  The tile, or null if none of its children are known.
+     */
+    @Nullable
+    private static Bitmap build(CacheWriter<?> cacheWriter, int canvasID, int level, int col, int row)
+    {
+        Bitmap bitmap = null;
+        Canvas canvas = null;
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Rect dst = new Rect();
+        int half = Tile.TILE_SIZE / 2;
+        for (int i = 0; i < 4; ++i)
+        {
+            int childCol = 2 * col + i % 2;
+            int childRow = 2 * row + i / 2;
+            Bitmap child = level == 1
+                    ? decode(readFrame(cacheWriter.read(cacheKey(canvasID, 0, childCol, childRow))))
+                    : load(cacheWriter, canvasID, level - 1, childCol, childRow);
+            if (child == null)
+            {
+                continue;
+            }
+            if (bitmap == null)
+            {
+                bitmap = BitmapPool.INSTANCE.acquire(Tile.TILE_SIZE, Tile.TILE_SIZE);
+                canvas = new Canvas(bitmap);
+            }
+            dst.set(i % 2 * half, i / 2 * half, i % 2 * half + half, i / 2 * half + half);
+            canvas.drawBitmap(child, null, dst, paint);
+            BitmapPool.INSTANCE.release(child);
+        }
+        return bitmap;
+    }
+
+    @Nullable
+    private static TileFrame readFrame(@Nullable byte[] entry)
+    {
+        if (entry == null)
+        {
+            return null;
+        }
+        try
+        {
+            return TileFrame.read(new ByteArrayInputStream(entry), entry.length);
+        } catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return
+     *  The frame's image as a pooled bitmap, or null if it has none.
+     */
+    @Nullable
+    private static Bitmap decode(@Nullable TileFrame frame)
+    {
+        if (frame == null || frame.data == null)
+        {
+            return null;
+        }
+        if (SolidColor.isEncoded(frame.data))
+        {
+            Bitmap bitmap = BitmapPool.INSTANCE.acquire(Tile.TILE_SIZE, Tile.TILE_SIZE);
+            bitmap.eraseColor(SolidColor.decode(frame.data));
+            return bitmap;
+        }
+        return BitmapPool.INSTANCE.decode(frame.data);
+    }
+
+    /**
+     * Reads a level tile from the disk cache, and builds it if the server
+     * has none. The server is asked in between by a FetchLevelTask on the
+     * network scheduler, so the loader only ever waits on the disk.
+     */
+    private class LoadLevelTask extends SyncScheduler.Job<Bitmap>
+    {
+        LevelTile m_tile;
+        int m_canvasID;
+        int m_level;
+        int m_col;
+        int m_row;
+        /**
+         * True once the server has been asked, with m_fetched its answer.
+         */
+        boolean m_isFetched;
+        TileFrame m_fetched;
+        /**
+         * Set if the tile is not cached and the server should be asked.
+         */
+        boolean m_needsFetch;
+
+        public LoadLevelTask(LevelTile tile, int canvasID, int level, int col, int row)
+        {
+            m_tile = tile;
+            m_canvasID = canvasID;
+            m_level = level;
+            m_col = col;
+            m_row = row;
+        }
+
+        @Override
+        protected Bitmap doInBackground()
+        {
+            try
+            {
+                String key = cacheKey(m_canvasID, m_level, m_col, m_row);
+                if (!m_isFetched)
+                {
+                    Bitmap bitmap = loadCached(key);
+                    if (bitmap != null)
+                    {
+                        return bitmap;
+                    }
+                    if (shouldFetch(key))
+                    {
+                        m_needsFetch = true;
+                        return null;
+                    }
+                }
+                return loadBuilt(m_cacheWriter, m_canvasID, m_level, m_col, m_row, m_fetched);
+            } catch (OutOfMemoryError e)
+            {
+                Log.w("LoadLevelTask", "Out of memory loading level tile", e);
+                BitmapPool.INSTANCE.trim();
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap)
+        {
+            if (m_needsFetch)
+            {
+                String url = levelUrl(m_canvasID, m_level, m_col, m_row);
+                m_tile.m_load = new FetchLevelTask(this, url);
+                m_network.submit(m_tile.m_load, url, SyncScheduler.PRIORITY_VISIBLE);
+                return;
+            }
+
+            m_tile.m_load = null;
+            BitmapPool.INSTANCE.release(m_tile.m_bitmap);
+            m_tile.m_bitmap = bitmap;
+            View view = m_view.get();
+            if (view != null)
+            {
+                view.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Asks the server for a level tile, then hands it back to the loader
+     * to decode, or to build if the server has none.
+     */
+    private class FetchLevelTask extends SyncScheduler.Job<TileFrame>
+    {
+        LoadLevelTask m_load;
+        String m_url;
+
+        public FetchLevelTask(LoadLevelTask load, String url)
+        {
+            m_load = load;
+            m_url = url;
+        }
+
+        @Override
+        protected TileFrame doInBackground()
+        {
+            return fetch(m_url);
+        }
+
+        @Override
+        protected void onPostExecute(TileFrame frame)
+        {
+            LevelTile tile = m_load.m_tile;
+            LoadLevelTask next = new LoadLevelTask(
+                    tile, m_load.m_canvasID, m_load.m_level, m_load.m_col, m_load.m_row
+            );
+            next.m_isFetched = true;
+            next.m_fetched = frame;
+            tile.m_load = next;
+            m_loader.submit(
+                    next, cacheKey(next.m_canvasID, next.m_level, next.m_col, next.m_row),
+                    SyncScheduler.PRIORITY_VISIBLE
+            );
+        }
+    }
+
+    /**
+     * Removes level tiles from the disk cache.
+     */
+    private static class DropTask extends SyncScheduler.Job<Void>
+    {
+        String[] m_keys;
+
+        public DropTask(String[] keys)
+        {
+            m_keys = keys;
+        }
+
+        @Override
+        protected Void doInBackground()
+        {
+            for (String key : m_keys)
+            {
+                Cache.INSTANCE.remove(key);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result)
+        {
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Posts a tile's edits in a form the server understands.
+ *
+ * Uploads go as JSON until the server sends a TileFrame, then as frames
+ * unless it answers 415. Edits covering part of a tile go as a patch only
+ * once a response has carried PATCH_HEADER: a server that does not know
+ * patches would store the small image as the whole tile. If it rejects a
+ * patch, or takes one without answering with the header, the whole draw
+ * layer is posted again and patches are not tried any more.
+ */
+
+public final class TileUpload
+{
+    /**
+     * Response header a server sends, with the value "1", if it takes
+     * patches.
+     */
+    public static final String PATCH_HEADER = "X-Equinox-Patches";
+
+    /**
+     * True once the server has sent a TileFrame.
+     */
+    static volatile boolean m_canUploadFrames = false;
+    /**
+     * True once the server has said it takes patches.
+     */
+    static volatile boolean m_canUploadPatches = false;
+
+    /**
+     * Edits to upload.
+     */
+    public interface Image
+    {
+        /**
+         * @return
+         *  True if the edits only cover part of the tile.
+         */
+        boolean isPatch();
+
+        /**
+         * Position of the edited part in the tile.
+         */
+        int getLeft();
+        int getTop();
+
+        /**
+         * Write a PNG of the edited part, or of the whole draw layer.
+         */
+        void writePng(OutputStream os, boolean patch) throws IOException;
+    }
+
+    private TileUpload()
+    {
+    }
+
+    /**
+     * Note what a tile response shows the server can take.
+     */
+    static void readCapabilities(HttpURLConnection conn)
+    {
+        if (TileFrame.isFrame(conn.getContentType()))
+        {
+            m_canUploadFrames = true;
+        }
+        if (acceptsPatches(conn))
+        {
+            m_canUploadPatches = true;
+        }
+    }
+
+    private static boolean acceptsPatches(HttpURLConnection conn)
+    {
+        return "1".equals(conn.getHeaderField(PATCH_HEADER));
+    }
+
+    /**
+     * Post edits, falling back to what the server takes.
+     *
+     * @param version
+     *  Version of the tile the edits were made on.
+     *
+     * @return
+     *  The connection with the final response, for the caller to read.
+     */
+    public static HttpURLConnection post(String url, int version, Image img) throws IOException
+    {
+        boolean asFrame = m_canUploadFrames;
+        boolean asPatch = img.isPatch() && m_canUploadPatches;
+        while (true)
+        {
+            HttpURLConnection conn = asFrame
+                    ? postFrame(url, version, img, asPatch)
+                    : postJSON(url, version, img, asPatch);
+            int status = conn.getResponseCode();
+            if (asFrame && status == 415)
+            {
+                // Unsupported media type; go back to JSON.
+                m_canUploadFrames = false;
+                asFrame = false;
+                Http.discard(conn);
+            }
+            else if (asPatch && (isRejection(status)
+                    || (status == HttpURLConnection.HTTP_OK && !acceptsPatches(conn))))
+            {
+                // The patch was refused or taken as a whole tile; send it all.
+                m_canUploadPatches = false;
+                asPatch = false;
+                Http.discard(conn);
+            }
+            else
+            {
+                return conn;
+            }
+        }
+    }
+
+    private static boolean isRejection(int status)
+    {
+        return status == HttpURLConnection.HTTP_BAD_REQUEST
+                || status == 415
+                || status == 422
+                || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED;
+    }
+
+    /**
+     * Stream the header and PNG straight into the request body.
+     */
+    private static HttpURLConnection postFrame(String url, int version, Image img, boolean asPatch)
+            throws IOException
+    {
+        HttpURLConnection conn = openPost(url, TileFrame.CONTENT_TYPE);
+        conn.setChunkedStreamingMode(0);
+
+        OutputStream os = conn.getOutputStream();
+        if (asPatch)
+        {
+            TileFrame.writePatchHeader(os, version, img.getLeft(), img.getTop());
+        }
+        else
+        {
+            TileFrame.writeHeader(os, version);
+        }
+        img.writePng(os, asPatch);
+        os.close();
+        return conn;
+    }
+
+    private static HttpURLConnection postJSON(String url, int version, Image img, boolean asPatch)
+            throws IOException
+    {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        img.writePng(png, asPatch);
+        String postData;
+        try
+        {
+            postData = TileJson.writeUpdate(png.toByteArray(), version, asPatch, img.getLeft(), img.getTop());
+        } catch (JSONException e)
+        {
+            throw new IOException("Could not build tile update", e);
+        }
+
+        HttpURLConnection conn = openPost(url, "application/json; charset=utf8");
+        Http.writeString(conn, postData);
+        return conn;
+    }
+
+    private static HttpURLConnection openPost(String url, String contentType) throws IOException
+    {
+        HttpURLConnection conn = Http.openPost(url, contentType);
+        conn.setRequestProperty("Accept", TileFrame.ACCEPT);
+        return conn;
+    }
+}
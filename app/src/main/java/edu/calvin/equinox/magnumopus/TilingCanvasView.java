@@ -3,30 +3,137 @@ package edu.calvin.equinox.magnumopus;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Picture;
+import android.graphics.RectF;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.view.GestureDetectorCompat;
+import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
+import android.widget.OverScroller;
+
+import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
 import java.lang.ref.WeakReference;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
-import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
 /**
  * Render canvas tiles to the view port. Dispatch paint commands to the
  * relevant tiles.
  */
 
-public class TilingCanvasView extends View implements GestureDetector.OnGestureListener
+public class TilingCanvasView extends View
+        implements GestureDetector.OnGestureListener, TileIndex.Listener<Tile>,
+                   InvalidationChannel.Listener, ScaleGestureDetector.OnScaleGestureListener
 {
     /**
-     * Storage of currently loaded tiles.
+     * Render mode: flatten each tile's layers into a bitmap in software.
+     */
+    public static final int RENDER_COMPOSITE = 0;
+    /**
+     * Render mode: replay each tile's recorded Picture, which a hardware
+     * accelerated canvas keeps as cached display lists. For measuring only:
+     * the Picture is recorded again on every stroke segment. Debug builds
+     * select it with CanvasActivity.EXTRA_RENDER_MODE.
+     */
+    public static final int RENDER_PICTURE = 1;
+
+    /**
+     * How tiles are drawn to the screen.
+     */
+    private int m_renderMode = RENDER_COMPOSITE;
+
+    /**
+     * Fill of tiles still loading from disk.
+     */
+    private static final int PLACEHOLDER_COLOR = 0xFFEEEEEE;
+
+    /**
+     * Range of tiles kept loaded, as of the last loadTiles(). Empty until
+     * the first call.
+     */
+    private int m_loadedColMin = 0;
+    private int m_loadedColMax = -1;
+    private int m_loadedRowMin = 0;
+    private int m_loadedRowMax = -1;
+
+    /**
+     * Animates flings.
+     */
+    private OverScroller m_scroller;
+
+    /**
+     * Sizes the buffer of loaded tiles from the pan velocity.
+     */
+    private Prefetcher m_prefetcher;
+
+    /**
+     * Zoom, in screen pixels per canvas pixel.
+     */
+    private float m_scale = 1;
+    private static final float MIN_SCALE = 1f / (1 << (TilePyramid.MAX_LEVEL + 1));
+    private static final float MAX_SCALE = 4;
+
+    /**
+     * Pinch zoom processing.
+     */
+    private ScaleGestureDetector m_scaleDetector;
+
+    /**
+     * Downsampled tiles shown when zoomed out.
      */
-    private TreeMap<Coordinate<Integer>, Tile> m_tiles;
+    private TilePyramid m_pyramid;
+
+    /**
+     * Storage of currently loaded tiles, keyed by tile column and row.
+     */
+    private TileIndex<Tile> m_tiles;
+
+    /**
+     * Recently unloaded tiles, kept decoded in front of the disk cache.
+     */
+    private MemoryCache<Tile> m_memoryCache;
+
+    /**
+     * Unloaded tiles still waiting to upload their edits.
+     */
+    private PendingUploads<Tile> m_pendingUploads;
+
+    /**
+     * Most bitmap memory held by m_memoryCache.
+     */
+    private static final long MEMORY_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+    /**
+     * Encodes and writes tiles to the disk cache off the UI thread.
+     */
+    private CacheWriter<Tile.CacheSnapshot> m_cacheWriter;
+
+    /**
+     * Most tiles waiting for m_cacheWriter. Each holds a copy of its layer.
+     */
+    private static final int CACHE_WRITE_QUEUE = 32;
+
+    /**
+     * Reusable visitor for drawing the visible tiles.
+     */
+    private DrawVisitor m_drawVisitor;
+
+    /**
+     * Brush and stroke shared by all tiles. Routes paint strokes to the tiles
+     * they pass over.
+     */
+    private StrokeDispatcher m_strokes;
 
     /**
      * The current type of brush being used.
@@ -59,32 +166,157 @@ public class TilingCanvasView extends View implements GestureDetector.OnGestureL
 
     private int m_canvasID;
 
+    /**
+     * Batched sync for the current canvas. Created on first sync.
+     */
+    private BatchSyncClient m_batchSync;
+
+    /**
+     * Runs tile sync requests off the UI thread, and the proxy and level
+     * tile fetches that go with loading.
+     */
+    private SyncScheduler m_scheduler;
+
+    // Limits for m_scheduler.
+    private static final int SYNC_WORKERS = 4;
+    private static final int SYNC_MAX_PER_HOST = 4;
+
+    /**
+     * Reads and decodes tiles from the disk cache off the UI thread. Kept
+     * off the network, so a slow request never holds up a disk read.
+     */
+    private SyncScheduler m_loader;
+    private static final int LOAD_WORKERS = 2;
+
+    /**
+     * Delivers work to the UI thread.
+     */
+    private Executor m_uiExecutor;
+
+    /**
+     * Push channel announcing changed tiles. Null until a canvas is set, and
+     * while the view is detached.
+     */
+    private InvalidationChannel m_channel;
+    private boolean m_hasCanvas;
+
+    /**
+     * Period of the sync timer. Edits upload on every tick; each tile is
+     * polled on its own SyncInterval.
+     */
+    private static final int SYNC_DELAY_MS = 2000;
+    /**
+     * Full syncs while the push channel is up, as a safety net.
+     */
+    private static final int SYNC_PUSH_SWEEP_MS = 60000;
+
+    /**
+     * Time since the last full sync, while the push channel is up.
+     */
+    private int m_sinceSweep;
+
+    /**
+     * Debug overlay of frame time, resident tiles and pending syncs.
+     */
+    private boolean m_isShowingMetrics;
+    private Paint m_metricsPaint;
+    private Paint m_metricsBackground;
+    private StringBuilder m_metricsText;
+    private static final int METRICS_REFRESH_MS = 500;
+
     public TilingCanvasView(Context context, AttributeSet attrs)
     {
         super(context, attrs);
 
         Cache.INSTANCE.init(getContext().getCacheDir());
 
-        m_tiles = new TreeMap<>(new Comparator<Coordinate<Integer>>()
+        m_tiles = new TileIndex<>(64);
+        m_tiles.setListener(this);
+        m_cacheWriter = new CacheWriter<>(Cache.INSTANCE, CACHE_WRITE_QUEUE);
+        m_memoryCache = new MemoryCache<>(MEMORY_CACHE_BYTES, new MemoryCache.Evictor<Tile>()
+        {
+            @Override
+            public long sizeOf(Tile tile)
+            {
+                return tile.getByteCount();
+            }
+
+            /**
+             * Save a tile that fell out of memory to disk, if it changed,
+             * and return its memory to the pool.
+             */
+            @Override
+            public void onEvicted(String key, Tile tile)
+            {
+                if (tile.hasUnsavedChanges())
+                {
+                    m_cacheWriter.write(key, tile.snapshot());
+                }
+                tile.recycle();
+            }
+        });
+        m_pendingUploads = new PendingUploads<>(new PendingUploads.Owner<Tile>()
         {
+            /**
+             * Held until the upload completes, so the result is in the
+             * disk cache for zoomed out levels.
+             */
+            @Override
+            public boolean isDirty(Tile tile)
+            {
+                return tile.isDirty() || tile.isSyncing();
+            }
+
+            @Override
+            public void upload(int col, int row, Tile tile)
+            {
+                // Edits on a placeholder upload once its version is known.
+                if (!tile.isLoading())
+                {
+                    beginTileSync(col, row, tile, SyncScheduler.PRIORITY_VISIBLE);
+                }
+            }
+
             @Override
-            public int compare(Coordinate<Integer> c1, Coordinate<Integer> c2)
+            public void release(int col, int row, Tile tile)
             {
-                return c1.x < c2.x ? -1
-                     : c1.x > c2.x ?  1
-                     : c1.y < c2.y ? -1
-                     : c1.y > c2.y ?  1
-                     : 0;
+                saveToCache(col, row, tile);
+                m_memoryCache.put(cacheKey(col, row), tile);
             }
         });
+        m_drawVisitor = new DrawVisitor();
+        m_strokes = new StrokeDispatcher(m_tiles, m_brushType);
 
         m_curPos = new Coordinate<>(0f, 0f);
         m_detector = new GestureDetectorCompat(getContext(), this);
+        m_scroller = new OverScroller(getContext());
+        m_prefetcher = new Prefetcher(Tile.TILE_SIZE);
+        m_scaleDetector = new ScaleGestureDetector(getContext(), this);
+
+        m_metricsPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        m_metricsPaint.setColor(Color.WHITE);
+        m_metricsPaint.setTextSize(12 * getResources().getDisplayMetrics().scaledDensity);
+        m_metricsBackground = new Paint();
+        m_metricsBackground.setColor(0xA0000000);
+        m_metricsText = new StringBuilder(64);
         m_isNavigating = false;
         m_isErasing = false;
 
         m_rand = new Random(System.nanoTime());
 
+        final Handler uiHandler = new Handler(Looper.getMainLooper());
+        m_uiExecutor = new Executor()
+        {
+            @Override
+            public void execute(Runnable command)
+            {
+                uiHandler.post(command);
+            }
+        };
+        m_scheduler = new SyncScheduler(SYNC_WORKERS, SYNC_MAX_PER_HOST, m_uiExecutor);
+        m_loader = new SyncScheduler(LOAD_WORKERS, LOAD_WORKERS, m_uiExecutor);
+        m_pyramid = new TilePyramid(m_loader, m_scheduler, m_cacheWriter, this);
+
         postDelayed(new TimedUpdater(this), 1000);
     }
 
@@ -96,6 +328,91 @@ public class TilingCanvasView extends View implements GestureDetector.OnGestureL
     public void setCanvasId( int canvasID)
     {
         m_canvasID = canvasID;
+        m_batchSync = null;
+        m_hasCanvas = true;
+        startChannel();
+    }
+
+    @Override
+    protected void onAttachedToWindow()
+    {
+        super.onAttachedToWindow();
+        if (m_hasCanvas && m_channel == null)
+        {
+            startChannel();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow()
+    {
+        super.onDetachedFromWindow();
+        stopChannel();
+        // Save what would otherwise be lost with the process. Loaded tiles
+        // stay loaded, in case the view is attached again.
+        for (int slot = m_tiles.firstSlot(); slot >= 0; slot = m_tiles.nextSlot(slot))
+        {
+            saveToCache(m_tiles.colAt(slot), m_tiles.rowAt(slot), m_tiles.tileAt(slot));
+        }
+        m_pendingUploads.flush();
+        m_memoryCache.evictAll();
+    }
+
+    /**
+     * Listen for changed tiles on the current canvas.
+     */
+    private void startChannel()
+    {
+        stopChannel();
+        m_channel = new InvalidationChannel(
+                "http://cs262.cs.calvin.edu:8085/equinox/watch/" + m_canvasID,
+                this,
+                m_uiExecutor
+        );
+        m_channel.start();
+    }
+
+    private void stopChannel()
+    {
+        if (m_channel != null)
+        {
+            m_channel.stop();
+            m_channel = null;
+        }
+    }
+
+    /**
+     * Fetch a tile the server announced as changed.
+     */
+    @Override
+    public void onTileChanged(int canvasID, int x, int y, int version)
+    {
+        if (canvasID != m_canvasID)
+        {
+            return;
+        }
+        int col = toTileIndex(x);
+        int row = toTileIndex(y);
+        Tile tile = m_tiles.get(col, row);
+        if (tile != null && !tile.isLoading() && version > tile.getVersion())
+        {
+            beginTileSync(col, row, tile, SyncScheduler.PRIORITY_VISIBLE);
+        }
+    }
+
+    @Override
+    public void onChannelStateChanged(boolean isConnected)
+    {
+        // Catch up on anything missed, and poll promptly if the channel
+        // went down.
+        m_sinceSweep = SYNC_PUSH_SWEEP_MS;
+        if (!isConnected)
+        {
+            for (int slot = m_tiles.firstSlot(); slot >= 0; slot = m_tiles.nextSlot(slot))
+            {
+                m_tiles.tileAt(slot).syncSoon();
+            }
+        }
     }
 
     static final class TimedUpdater implements Runnable
@@ -113,8 +430,7 @@ public class TilingCanvasView extends View implements GestureDetector.OnGestureL
             TilingCanvasView view = m_view.get();
             if (view != null)
             {
-                view.syncTiles();
-                view.postDelayed(this, 5000);
+                view.postDelayed(this, view.onSyncTimer());
             }
         }
     }
@@ -142,6 +458,41 @@ public class TilingCanvasView extends View implements GestureDetector.OnGestureL
         return m_isNavigating;
     }
 
+    /**
+     * @return
+     *  The current render mode, RENDER_COMPOSITE or RENDER_PICTURE.
+     */
+    public int getRenderMode()
+    {
+        return m_renderMode;
+    }
+
+    /**
+     * Switch how tiles are drawn, to compare rendering paths in debug
+     * builds.
+     *
+     * @param renderMode
+     *  RENDER_COMPOSITE or RENDER_PICTURE.
+     */
+    public void setRenderMode(int renderMode)
+    {
+        m_renderMode = renderMode;
+        invalidate();
+    }
+
+    /**
+     * Show or hide the debug overlay.
+     *
+     * @return
+     *  True if the overlay is now shown.
+     */
+    public boolean toggleMetrics()
+    {
+        m_isShowingMetrics = !m_isShowingMetrics;
+        invalidate();
+        return m_isShowingMetrics;
+    }
+
     /**
      * Check if canvas is in erasing mode.
      *
@@ -171,20 +522,181 @@ public class TilingCanvasView extends View implements GestureDetector.OnGestureL
         loadTiles();
     }
 
+    /**
+     * Draw the canvas. With hardware acceleration this only records the
+     * frame, and Metrics.DRAW measures the recording.
+     */
     @Override
     protected void onDraw(Canvas canvas)
     {
+        long start = System.nanoTime();
         super.onDraw(canvas);
 
-        for (TreeMap.Entry<Coordinate<Integer>, Tile> entry : m_tiles.entrySet())
+        if (TilePyramid.levelFor(m_scale) > 0)
         {
-            Coordinate<Integer> coord = entry.getKey();
-            Tile tile = entry.getValue();
-            canvas.drawBitmap(
-                    tile.getComposite(),
-                    coord.x - m_curPos.x, coord.y - m_curPos.y,
-                    null
-            );
+            // Zoomed out; the canvas is read only.
+            m_pyramid.draw(canvas, m_curPos.x, m_curPos.y, m_scale);
+        }
+        else
+        {
+            drawTiles(canvas);
+        }
+        Metrics.DRAW.recordSince(start);
+
+        if (m_isShowingMetrics)
+        {
+            drawMetrics(canvas);
+            postInvalidateDelayed(METRICS_REFRESH_MS);
+        }
+    }
+
+    private void drawTiles(Canvas canvas)
+    {
+        canvas.save();
+        canvas.scale(m_scale, m_scale);
+
+        // Only visit tiles overlapping the screen, not the off screen buffer.
+        int left = (int)Math.floor(m_curPos.x);
+        int top = (int)Math.floor(m_curPos.y);
+        m_drawVisitor.m_canvas = canvas;
+        // Hardware canvases only support drawPicture() from Marshmallow on.
+        m_drawVisitor.m_usePicture = m_renderMode == RENDER_PICTURE
+                && (!canvas.isHardwareAccelerated() || Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+        m_tiles.forEachInRange(
+                toTileIndex(left), toTileIndex(top),
+                toTileIndex(left + getViewportWidth()), toTileIndex(top + getViewportHeight()),
+                m_drawVisitor
+        );
+        m_drawVisitor.m_canvas = null;
+
+        m_strokes.drawPreview(canvas, m_curPos.x, m_curPos.y, m_scale);
+        canvas.restore();
+    }
+
+    /**
+     * Draw the debug overlay. The text is built in place, so showing it
+     * does not allocate on every frame.
+     */
+    private void drawMetrics(Canvas canvas)
+    {
+        float lineHeight = m_metricsPaint.getTextSize() * 1.25f;
+        float x = lineHeight / 2;
+        canvas.drawRect(0, 0, getWidth() * 0.6f, lineHeight * 3.5f, m_metricsBackground);
+
+        StringBuilder text = m_metricsText;
+        text.setLength(0);
+        text.append(m_renderMode == RENDER_PICTURE ? "picture " : "composite ");
+        appendMillis(text, Metrics.DRAW.getLastMicros());
+        text.append(", p95 ");
+        appendMillis(text, Metrics.DRAW.getPercentileMicros(0.95));
+        text.append(", max ");
+        appendMillis(text, Metrics.DRAW.getMaxMicros());
+        canvas.drawText(text, 0, text.length(), x, lineHeight, m_metricsPaint);
+
+        text.setLength(0);
+        text.append("tiles ").append(m_tiles.size())
+            .append(", parked ").append(m_memoryCache.size())
+            .append(" (").append(m_memoryCache.getBytes() >> 20).append(" MB)")
+            .append(", level ").append(TilePyramid.levelFor(m_scale));
+        canvas.drawText(text, 0, text.length(), x, lineHeight * 2, m_metricsPaint);
+
+        text.setLength(0);
+        text.append("syncs ").append(m_scheduler.getQueueDepth())
+            .append(" queued, ").append(m_scheduler.getActiveCount())
+            .append(" running, p95 ");
+        appendMillis(text, Metrics.SYNC_LATENCY.getPercentileMicros(0.95));
+        canvas.drawText(text, 0, text.length(), x, lineHeight * 3, m_metricsPaint);
+    }
+
+    private static void appendMillis(StringBuilder text, long micros)
+    {
+        text.append(micros / 1000).append('.').append(micros / 100 % 10).append(" ms");
+    }
+
+    /**
+     * @return
+     *  Width of the screen in canvas pixels.
+     */
+    private int getViewportWidth()
+    {
+        return (int)Math.ceil(getWidth() / m_scale);
+    }
+
+    /**
+     * @return
+     *  Height of the screen in canvas pixels.
+     */
+    private int getViewportHeight()
+    {
+        return (int)Math.ceil(getHeight() / m_scale);
+    }
+
+    /**
+     * Draws each visited tile at its position relative to the view. Tiles
+     * that have not changed hand back their cached composite.
+     */
+    private final class DrawVisitor implements TileIndex.Visitor<Tile>
+    {
+        private Canvas m_canvas;
+        private boolean m_usePicture;
+        private Paint m_fill = new Paint();
+        private Paint m_placeholder = new Paint();
+        private Paint m_proxyPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private RectF m_proxyDst = new RectF();
+
+        private DrawVisitor()
+        {
+            m_placeholder.setColor(PLACEHOLDER_COLOR);
+        }
+
+        @Override
+        public void visit(int col, int row, Tile tile)
+        {
+            float x = col * Tile.TILE_SIZE - m_curPos.x;
+            float y = row * Tile.TILE_SIZE - m_curPos.y;
+            if (tile.isLoading() || tile.isProxyLoading())
+            {
+                // Still being read from disk or fetching a proxy. Any edits
+                // draw on top.
+                m_canvas.drawRect(x, y, x + Tile.TILE_SIZE, y + Tile.TILE_SIZE, m_placeholder);
+            }
+            Bitmap proxy = tile.getProxy();
+            if (proxy != null)
+            {
+                // Blurry, but better than nothing until the first sync.
+                m_proxyDst.set(x, y, x + Tile.TILE_SIZE, y + Tile.TILE_SIZE);
+                m_canvas.drawBitmap(proxy, null, m_proxyDst, m_proxyPaint);
+            }
+
+            if (tile.isSolid())
+            {
+                // No bitmap; blank tiles cost nothing.
+                int color = tile.getSolidColor();
+                if (Color.alpha(color) != 0)
+                {
+                    m_fill.setColor(color);
+                    m_canvas.drawRect(x, y, x + Tile.TILE_SIZE, y + Tile.TILE_SIZE, m_fill);
+                }
+            }
+            else if (m_usePicture)
+            {
+                Picture picture = tile.getPicture();
+                if (picture != null)
+                {
+                    m_canvas.save();
+                    m_canvas.translate(x, y);
+                    m_canvas.drawPicture(picture);
+                    m_canvas.restore();
+                }
+            }
+            else
+            {
+                Bitmap composite = tile.getComposite();
+                if (composite != null)
+                {
+                    m_canvas.drawBitmap(composite, x, y, null);
+                }
+            }
         }
     }
 
@@ -198,37 +710,43 @@ public class TilingCanvasView extends View implements GestureDetector.OnGestureL
     {
         if (m_isNavigating)
         {
+            m_scaleDetector.onTouchEvent(event);
             m_detector.onTouchEvent(event);
             if (event.getAction() == MotionEvent.ACTION_UP)
             {
                 // Potentially ending a pan operation. Check if tiles
                 // need to be loaded or unloaded.
+                if (m_scroller.isFinished())
+                {
+                    // No fling carries on; even out the buffer.
+                    m_prefetcher.reset();
+                }
                 loadTiles();
             }
             return true;
         }
 
-        // TODO: Can we optimize this by sending events only to relevant tiles?
+        if (TilePyramid.levelFor(m_scale) > 0)
+        {
+            // Too far out to paint.
+            return true;
+        }
+
         switch (event.getAction())
         {
             case MotionEvent.ACTION_DOWN:
             case MotionEvent.ACTION_MOVE:
-                for (TreeMap.Entry<Coordinate<Integer>, Tile> entry : m_tiles.entrySet())
-                {
-                    Coordinate<Integer> coord = entry.getKey();
-                    entry.getValue().onTouchMove(
-                            event.getX() - coord.x + m_curPos.x,
-                            event.getY() - coord.y + m_curPos.y
-                    );
-                }
+                long start = System.nanoTime();
+                m_strokes.onTouchMove(
+                        event.getX() / m_scale + m_curPos.x,
+                        event.getY() / m_scale + m_curPos.y
+                );
+                Metrics.TOUCH_MOVE.recordSince(start);
                 invalidate();
                 return true;
 
             case MotionEvent.ACTION_UP:
-                for (TreeMap.Entry<Coordinate<Integer>, Tile> entry : m_tiles.entrySet())
-                {
-                    entry.getValue().onTouchRelease();
-                }
+                m_strokes.onTouchRelease();
                 invalidate();
                 return true;
 
@@ -241,6 +759,9 @@ public class TilingCanvasView extends View implements GestureDetector.OnGestureL
     @Override
     public boolean onDown(MotionEvent motionEvent)
     {
+        // Touching the canvas stops a fling.
+        m_scroller.forceFinished(true);
+        m_prefetcher.reset();
         return true;
     }
 
@@ -258,8 +779,13 @@ public class TilingCanvasView extends View implements GestureDetector.OnGestureL
     @Override
     public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY)
     {
+        // Distances are in screen pixels; positions in canvas pixels.
+        distanceX /= m_scale;
+        distanceY /= m_scale;
         m_curPos.x += distanceX;
         m_curPos.y += distanceY;
+        m_prefetcher.onMove(distanceX, distanceY, e2.getEventTime());
+        loadTiles();
         invalidate();
         return true;
     }
@@ -271,166 +797,491 @@ public class TilingCanvasView extends View implements GestureDetector.OnGestureL
 
     @Override
     public boolean onFling(MotionEvent motionEvent, MotionEvent motionEvent1, float v, float v1)
+    {
+        // Velocities are of the finger; the view moves the other way.
+        m_scroller.fling(
+                Math.round(m_curPos.x), Math.round(m_curPos.y),
+                Math.round(-v / m_scale), Math.round(-v1 / m_scale),
+                Integer.MIN_VALUE, Integer.MAX_VALUE,
+                Integer.MIN_VALUE, Integer.MAX_VALUE
+        );
+        ViewCompat.postInvalidateOnAnimation(this);
+        return true;
+    }
+
+    /**
+     * Advance a fling, loading tiles ahead of it.
+     */
+    @Override
+    public void computeScroll()
+    {
+        if (!m_scroller.computeScrollOffset())
+        {
+            return;
+        }
+        float x = m_scroller.getCurrX();
+        float y = m_scroller.getCurrY();
+        m_prefetcher.onMove(x - m_curPos.x, y - m_curPos.y, SystemClock.uptimeMillis());
+        m_curPos.x = x;
+        m_curPos.y = y;
+
+        if (m_scroller.isFinished())
+        {
+            // Came to rest; even out the buffer.
+            m_prefetcher.reset();
+        }
+        else
+        {
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+        loadTiles();
+    }
+    @Override
+    public boolean onScaleBegin(ScaleGestureDetector detector)
     {
         return true;
     }
+
+    /**
+     * Zoom about the pinch, keeping the canvas under it in place.
+     */
+    @Override
+    public boolean onScale(ScaleGestureDetector detector)
+    {
+        float scale = Math.max(MIN_SCALE, Math.min(m_scale * detector.getScaleFactor(), MAX_SCALE));
+        m_curPos.x += detector.getFocusX() / m_scale - detector.getFocusX() / scale;
+        m_curPos.y += detector.getFocusY() / m_scale - detector.getFocusY() / scale;
+        m_scale = scale;
+        loadTiles();
+        invalidate();
+        return true;
+    }
+
+    @Override
+    public void onScaleEnd(ScaleGestureDetector detector)
+    {
+    }
     /**********************************************************************/
 
     /**
      * Check which tiles are currently in memory; unload tiles that are no
-     * longer visible, and load that have become visible.
+     * longer visible, and load that have become visible. Only tiles that
+     * enter or leave the loaded range are touched, so this is cheap enough
+     * to call on every scroll event.
      */
     private void loadTiles()
     {
-        // Keep a one-tile buffer around the screen.
-        // TODO: Does this allocate too much RAM? Should bounds be tighter?
-        int curX = Math.round(m_curPos.x) - Tile.TILE_SIZE;
-        int curY = Math.round(m_curPos.y) - Tile.TILE_SIZE;
-        int xMax = getWidth() + curX + 2 * Tile.TILE_SIZE;
-        int yMax = getHeight() + curY + 2 * Tile.TILE_SIZE;
+        long start = System.nanoTime();
+        int level = TilePyramid.levelFor(m_scale);
+        if (level > 0)
+        {
+            loadLevel(level);
+        }
+        else
+        {
+            m_pyramid.clear();
+            loadEditableTiles();
+        }
+        Metrics.LOAD_TILES.recordSince(start);
+    }
+
+    /**
+     * Keep the tiles around the screen loaded, at full size.
+     */
+    private void loadEditableTiles()
+    {
+        // Keep a buffer around the screen, deeper in the direction of
+        // travel and shallower behind.
+        long now = SystemClock.uptimeMillis();
+        float vx = m_prefetcher.getVelocityX(now);
+        float vy = m_prefetcher.getVelocityY(now);
+        int left = Math.round(m_curPos.x);
+        int top = Math.round(m_curPos.y);
+        int colMin = toTileIndex(left - m_prefetcher.getBufferBefore(vx));
+        int rowMin = toTileIndex(top - m_prefetcher.getBufferBefore(vy));
+        int colMax = toTileIndex(left + getViewportWidth() + m_prefetcher.getBufferAfter(vx));
+        int rowMax = toTileIndex(top + getViewportHeight() + m_prefetcher.getBufferAfter(vy));
 
+        if (   colMin == m_loadedColMin && colMax == m_loadedColMax
+            && rowMin == m_loadedRowMin && rowMax == m_loadedRowMax )
+        {
+            return;
+        }
 
-        // Remove unneeded tiles.
-        Iterator<TreeMap.Entry<Coordinate<Integer>, Tile>> it = m_tiles.entrySet().iterator();
-        while (it.hasNext())
+        // Remove tiles that left the range. Saving to the cache happens in
+        // onTileRemoved().
+        if (m_loadedColMax < m_loadedColMin)
         {
-            TreeMap.Entry<Coordinate<Integer>, Tile> entry = it.next();
-            Coordinate<Integer> coord = entry.getKey();
-            if (   coord.x > xMax || coord.x + Tile.TILE_SIZE < curX
-                || coord.y > yMax || coord.y + Tile.TILE_SIZE < curY )
+            // No range yet; sweep everything.
+            for (int slot = m_tiles.firstSlot(); slot >= 0; slot = m_tiles.nextSlot(slot))
             {
-                // TODO: Save tile to disk/server.
-                Tile tile = entry.getValue();
-                if (tile.getVersion() > 0)
+                int col = m_tiles.colAt(slot);
+                int row = m_tiles.rowAt(slot);
+                if (col < colMin || col > colMax || row < rowMin || row > rowMax)
                 {
-                    Bitmap img = entry.getValue().getSolidComposite();
-                    ByteArrayOutputStream data = new ByteArrayOutputStream();
-                    img.compress(
-                            Bitmap.CompressFormat.JPEG,
-                            5,
-                            data
-                    );
-                    Cache.INSTANCE.put(m_canvasID + "-" + coord.x + "-" + coord.y, data.toByteArray());
+                    m_tiles.removeAt(slot);
                 }
-
-                it.remove();
             }
         }
-
-        // Load new tiles.
-        for (int x = curX; x < xMax; x += Tile.TILE_SIZE)
+        else
         {
-            for (int y = curY; y < yMax; y += Tile.TILE_SIZE)
+            for (int col = m_loadedColMin; col <= m_loadedColMax; ++col)
             {
-                Coordinate<Integer> coord = makeCoord(x, y);
-                Tile tile = m_tiles.get(coord);
-                if (tile == null)
+                for (int row = m_loadedRowMin; row <= m_loadedRowMax; ++row)
                 {
-                    // TODO: Load tile from disk/server.
-                    try
+                    if (col < colMin || col > colMax || row < rowMin || row > rowMax)
                     {
-                        tile = new Tile(
-                                m_brushType,
-                                Cache.INSTANCE.get(m_canvasID + "-" + coord.x + "-" + coord.y)
-                        );
-                        m_tiles.put(coord, tile);
-                    }
-                    catch (OutOfMemoryError e)
-                    {
-                        // Not enough memory currently?
-                        e.printStackTrace();
+                        m_tiles.remove(col, row);
                     }
                 }
             }
         }
+
+        // Load tiles that entered it.
+        for (int col = colMin; col <= colMax; ++col)
+        {
+            for (int row = rowMin; row <= rowMax; ++row)
+            {
+                if (m_tiles.get(col, row) == null)
+                {
+                    loadTile(col, row);
+                }
+            }
+        }
+
+        m_loadedColMin = colMin;
+        m_loadedColMax = colMax;
+        m_loadedRowMin = rowMin;
+        m_loadedRowMax = rowMax;
     }
 
+    /**
+     * Show a zoomed out level, with a one tile buffer. Editable tiles are
+     * unloaded, so the tiles in memory stay bounded at any zoom.
+     */
+    private void loadLevel(int level)
+    {
+        if (!m_tiles.isEmpty())
+        {
+            m_tiles.clear();
+        }
+        m_loadedColMin = 0;
+        m_loadedColMax = -1;
+        m_loadedRowMin = 0;
+        m_loadedRowMax = -1;
+
+        int span = TilePyramid.spanOf(level);
+        int left = Math.round(m_curPos.x);
+        int top = Math.round(m_curPos.y);
+        m_pyramid.setRange(
+                m_canvasID, level,
+                TilePyramid.toLevelIndex(left - span, level),
+                TilePyramid.toLevelIndex(top - span, level),
+                TilePyramid.toLevelIndex(left + getViewportWidth() + span, level),
+                TilePyramid.toLevelIndex(top + getViewportHeight() + span, level)
+        );
+    }
 
     /**
-     *Syncs the tiles with the server so that you can draw on the canvas and
-     * have it show up on a collaborator's phone.
+     * Bring a tile into memory, from the memory cache if it is there, and
+     * otherwise from disk in the background.
      */
+    private void loadTile(int col, int row)
+    {
+        String key = cacheKey(col, row);
+        Tile tile = m_pendingUploads.take(col, row);
+        if (tile == null)
+        {
+            tile = m_memoryCache.take(key);
+        }
+        if (tile == null)
+        {
+            // Still on its way to disk? One being written is read below.
+            Tile.CacheSnapshot snapshot = m_cacheWriter.take(key);
+            if (snapshot != null)
+            {
+                tile = new Tile(snapshot);
+            }
+        }
+        if (tile != null)
+        {
+            Metrics.MEMORY_LOADS.increment();
+            // It may have missed updates while unloaded.
+            tile.syncSoon();
+            m_tiles.put(col, row, tile);
+            return;
+        }
+
+        // Show a placeholder while the disk cache is read.
+        Metrics.DISK_LOADS.increment();
+        tile = new Tile();
+        m_tiles.put(col, row, tile);
+        tile.beginLoad(
+                key,
+                "http://cs262.cs.calvin.edu:8085/equinox/proxy/tile/" + m_canvasID
+                        + "/" + col * Tile.TILE_SIZE + "/" + row * Tile.TILE_SIZE,
+                this, m_cacheWriter, m_loader, m_scheduler,
+                isTileVisible(col, row) ? SyncScheduler.PRIORITY_VISIBLE : SyncScheduler.PRIORITY_BUFFER
+        );
+    }
+
+    @Override
+    public void onTileAdded(int col, int row, Tile tile)
+    {
+    }
+
+    /**
+     * Park an unloaded tile in the memory cache, once any edits on it are
+     * uploading. It goes to disk once it falls out of memory.
+     */
+    @Override
+    public void onTileRemoved(int col, int row, Tile tile)
+    {
+        if (tile.isLoading() && !tile.isDirty())
+        {
+            // Nothing to keep; stop the load.
+            tile.recycle();
+            return;
+        }
+        m_pendingUploads.add(col, row, tile);
+    }
+
+
+    /**
+     * Run a timed sync.
+     *
+     * While the push channel is up, only edits are uploaded, with an
+     * occasional full sync. Otherwise tiles are polled as they come due,
+     * often while they are active and rarely once they go quiet.
+     *
+     * @return
+     *  Delay until the next timed sync.
+     */
+    private int onSyncTimer()
+    {
+        if (m_channel != null && m_channel.isConnected())
+        {
+            m_sinceSweep += SYNC_DELAY_MS;
+            boolean isSweep = m_sinceSweep >= SYNC_PUSH_SWEEP_MS;
+            if (isSweep)
+            {
+                m_sinceSweep = 0;
+            }
+            syncTiles(!isSweep);
+            return SYNC_DELAY_MS;
+        }
+
+        syncTiles(false);
+        return SYNC_DELAY_MS;
+    }
 
-    private void syncTiles()
+    /**
+     * Start syncing one tile on its own.
+     */
+    private void beginTileSync(int col, int row, Tile tile, int priority)
     {
+        int x = col * Tile.TILE_SIZE;
+        int y = row * Tile.TILE_SIZE;
+        tile.beginSyncEdits(
+                "http://cs262.cs.calvin.edu:8085/equinox/tile/" + m_canvasID + "/" + x + "/" + y,
+                "http://cs262.cs.calvin.edu:8085/equinox/update/tile/" + m_canvasID + "/" + x + "/" + y,
+                this,
+                m_scheduler,
+                priority
+        );
+    }
 
-        for (TreeMap.Entry<Coordinate<Integer>, Tile> entry : m_tiles.entrySet())
+    /**
+     *Syncs the tiles with the server so that you can draw on the canvas and
+     * have it show up on a collaborator's phone.
+     *
+     * @param editsOnly
+     *  True to only upload tiles with edits. Otherwise tiles with edits and
+     *  tiles due for a poll are synced.
+     */
+    private void syncTiles(boolean editsOnly)
+    {
+        if (m_batchSync == null)
         {
-            Tile tile = entry.getValue();
-            Coordinate<Integer> coord = entry.getKey();
-            tile.beginSyncEdits(
-                    "http://cs262.cs.calvin.edu:8085/equinox/tile/" + m_canvasID + "/" + coord.x + "/" + coord.y,
-                    "http://cs262.cs.calvin.edu:8085/equinox/update/tile/" + m_canvasID + "/" + coord.x + "/" + coord.y,
-                    this
+            m_batchSync = new BatchSyncClient(
+                    "http://cs262.cs.calvin.edu:8085/equinox/sync/tiles/" + m_canvasID
             );
-            if (tile.getVersion() > 0 && m_rand.nextDouble() < 0.1)
+        }
+
+        // Edits on tiles that have left the screen come first.
+        m_pendingUploads.flush();
+
+        // Clean tiles check for updates in one batched request. Tiles with
+        // edits, or every tile if the server cannot batch, sync on their own.
+        TileIndex<Tile> batch = null;
+        if (m_batchSync.isSupported() && !editsOnly)
+        {
+            batch = new TileIndex<>(m_tiles.size());
+        }
+        long now = SystemClock.uptimeMillis();
+
+        for (int slot = m_tiles.firstSlot(); slot >= 0; slot = m_tiles.nextSlot(slot))
+        {
+            Tile tile = m_tiles.tileAt(slot);
+            int col = m_tiles.colAt(slot);
+            int row = m_tiles.rowAt(slot);
+            if (tile.isLoading() || (editsOnly ? !tile.isDirty() : !tile.isSyncDue(now)))
             {
-                Bitmap img = entry.getValue().getSolidComposite();
-                ByteArrayOutputStream data = new ByteArrayOutputStream();
-                img.compress(
-                        Bitmap.CompressFormat.JPEG,
-                        5,
-                        data
+                // Loading tiles sync once their cached version is known.
+                continue;
+            }
+
+            if (batch != null && tile.beginBatchSync())
+            {
+                batch.put(col, row, tile);
+                m_batchSync.add(col * Tile.TILE_SIZE, row * Tile.TILE_SIZE, tile.getVersion());
+            }
+            else
+            {
+                // Tiles on screen sync ahead of the off screen buffer.
+                beginTileSync(
+                        col, row, tile,
+                        isTileVisible(col, row) ? SyncScheduler.PRIORITY_VISIBLE : SyncScheduler.PRIORITY_BUFFER
                 );
-                Cache.INSTANCE.put(m_canvasID + "-" + coord.x + "-" + coord.y, data.toByteArray());
+            }
+            if (!editsOnly && tile.getVersion() > 0 && m_rand.nextDouble() < 0.1)
+            {
+                saveToCache(m_tiles.colAt(slot), m_tiles.rowAt(slot), tile);
             }
         }
+
+        if (batch != null && !batch.isEmpty())
+        {
+            m_scheduler.submit(
+                    new BatchSyncTask(m_batchSync, batch, this, m_batchSync.takeRequest()),
+                    m_batchSync.getUrl(),
+                    SyncScheduler.PRIORITY_VISIBLE
+            );
+        }
+    }
+
+    /**
+     * Send one batched sync request, and hand each tile its result.
+     */
+    private static final class BatchSyncTask extends SyncScheduler.Job<List<JSONObject>>
+    {
+        private BatchSyncClient m_client;
+        private TileIndex<Tile> m_batch;
+        private WeakReference<TilingCanvasView> m_view;
+        private String m_request;
+
+        private BatchSyncTask(BatchSyncClient client, TileIndex<Tile> batch, TilingCanvasView view,
+                              String request)
+        {
+            m_client = client;
+            m_batch = batch;
+            m_view = new WeakReference<>(view);
+            m_request = request;
+        }
+
+        @Override
+        protected List<JSONObject> doInBackground()
+        {
+            long start = System.nanoTime();
+            List<JSONObject> updates = m_client.sync(m_request);
+            Metrics.SYNC_ROUND_TRIP.recordSince(start);
+            return updates;
+        }
+
+        @Override
+        protected void onPostExecute(List<JSONObject> updates)
+        {
+            View view = m_view.get();
+            if (updates != null)
+            {
+                for (JSONObject update : updates)
+                {
+                    Tile tile = m_batch.remove(
+                            toTileIndex(update.optInt("x")),
+                            toTileIndex(update.optInt("y"))
+                    );
+                    if (tile != null)
+                    {
+                        tile.completeBatchSync(update, view);
+                    }
+                }
+            }
+
+            // Unchanged tiles, or all of them if the request failed.
+            for (int slot = m_batch.firstSlot(); slot >= 0; slot = m_batch.nextSlot(slot))
+            {
+                m_batch.tileAt(slot).completeBatchSync(null, view);
+            }
+        }
+    }
+
+    /**
+     * @return
+     *  True if part of the tile is on screen.
+     */
+    private boolean isTileVisible(int col, int row)
+    {
+        int left = (int)Math.floor(m_curPos.x);
+        int top = (int)Math.floor(m_curPos.y);
+        return col >= toTileIndex(left) && col <= toTileIndex(left + getViewportWidth())
+            && row >= toTileIndex(top) && row <= toTileIndex(top + getViewportHeight());
     }
 
     /**
-     * Helper function to make an integer coordinate aligned to Tile.TILE_SIZE.
-     *
-     * @param x
-     *  X parameter of the coordinate.
-     * @param y
-     *  Y parameter of the coordinate.
-     *
      * @return
-     *  The coordinate.
+     *  Key of a tile of the current canvas in the caches.
      */
-    private static Coordinate<Integer> makeCoord(int x, int y)
+    private String cacheKey(int col, int row)
     {
-        return new Coordinate<>(align(x), align(y));
+        return TilePyramid.cacheKey(m_canvasID, 0, col, row);
     }
 
     /**
-     * Align a position to the nearest multiple of Tile.TILE_SIZE <= pos.
+     * Queue a tile's synced layer and version to be written to the disk
+     * cache if they changed, and drop the zoomed out tiles built from the
+     * old ones.
+     */
+    private void saveToCache(int col, int row, Tile tile)
+    {
+        if (tile.hasUnsavedChanges())
+        {
+            m_cacheWriter.write(cacheKey(col, row), tile.snapshot());
+            m_pyramid.invalidate(m_canvasID, col, row);
+        }
+    }
+
+    /**
+     * Convert a position to the column (or row) of the tile containing it.
      *
      * @param pos
-     *  Position to align.
+     *  Position to convert.
      *
      * @return
-     *  The aligned position.
+     *  The tile index.
      */
-    private static int align(int pos)
+    static int toTileIndex(int pos)
     {
-        return (pos < 0 ? pos + 1 - Tile.TILE_SIZE : pos) / Tile.TILE_SIZE * Tile.TILE_SIZE;
+        return TileGrid.toTileIndex(pos);
     }
 
     /**
-     * Set the brush for each canvas tile
+     * Set the brush shared by all canvas tiles
      * @param brushType
      */
     protected void setBrush(String brushType)
     {
         m_brushType = brushType;
-        for (TreeMap.Entry<Coordinate<Integer>, Tile> entry : m_tiles.entrySet())
-        {
-            entry.getValue().setBrush(brushType);
-        }
+        m_strokes.setBrush(brushType);
     }
 
     /**
-     * Set the color for each canvas tile
+     * Set the color of the shared brush
      * @param colorType
      */
     protected void setColor(int colorType)
     {
         m_colorType = colorType;
-        for (TreeMap.Entry<Coordinate<Integer>, Tile> entry : m_tiles.entrySet())
-        {
-            entry.getValue().setColor(colorType);
-        }
+        m_strokes.setColor(colorType);
     }
 
 }
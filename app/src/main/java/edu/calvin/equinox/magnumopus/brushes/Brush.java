@@ -1,35 +1,188 @@
 package edu.calvin.equinox.magnumopus.brushes;
 
 import android.graphics.Canvas;
+import android.graphics.RectF;
+
+import edu.calvin.equinox.magnumopus.Coordinate;
 
 /**
  * Basic brush interface.
+ *
+ * A single brush serves the whole canvas. Touch points are recorded once into
+ * a shared Stroke in canvas coordinates, and each tile asks the brush to
+ * rasterize the stroke onto its own layer. Layer positions are given as the
+ * canvas coordinates (left, top) of the layer's origin. Brushes add the
+ * region they paint to a damage rectangle, in layer coordinates, so the
+ * layer's owner can limit how much it recomposites.
  */
 
 public abstract class Brush
 {
     /**
-     * Event handler for draw movement.
+     * Event handler for draw movement. Records the point into the stroke if
+     * it moved far enough from the previous one.
      *
+     * @param stroke
+     *  The stroke being drawn.
      * @param x
      *  The x coordinate of the current position.
      * @param y
      *  The y coordinate of the current position.
+     *
+     * @return
+     *  Number of points appended to the stroke.
+     */
+    public int addPoint(Stroke stroke, float x, float y)
+    {
+        if (!stroke.isEmpty())
+        {
+            Coordinate<Float> prev = stroke.last();
+            if (Math.abs(x - prev.x) < 6 && Math.abs(y - prev.y) < 6)
+            {
+                return 0;
+            }
+        }
+        stroke.add(x, y);
+        return 1;
+    }
+
+    /**
+     * Draw the part of the stroke ending at a point onto a layer.
+     *
+     * @param stroke
+     *  The stroke being drawn.
+     * @param index
+     *  Index of the newest point to draw up to.
+     * @param canvas
+     *  Canvas of the layer to draw on.
+     * @param left, top
+     *  Position of the layer on the canvas.
+     * @param damage
+     *  Region to grow by the painted area, in layer coordinates.
+     *
+     * @return
+     *  True if the layer was modified.
+     */
+    public abstract boolean drawSegment(Stroke stroke, int index, Canvas canvas, float left, float top, RectF damage);
+
+    /**
+     * Draw the end of the stroke onto a layer.
+     *
+     * @return
+     *  True if the layer was modified.
      */
-    public abstract boolean onTouchMove(float x, float y);
+    public abstract boolean drawStrokeEnd(Stroke stroke, Canvas canvas, float left, float top, RectF damage);
 
     /**
-     * Event handler for draw end.
+     * Called after every layer has drawn the end of the stroke.
      */
-    public abstract boolean onTouchRelease();
+    public void onStrokeEnd()
+    {
+    }
 
     /**
      * Render a preview of what this brush is drawing, but has not committed yet.
+     *
+     * @param previewCanvas
+     *  Canvas of the view, already scaled to canvas coordinates.
+     * @param left, top
+     *  Position of the view on the tiling canvas.
+     * @param scale
+     *  Scale previewCanvas is drawn at; the view covers its width and
+     *  height divided by this, in canvas coordinates.
      */
-    public void drawPreview(Canvas previewCanvas)
+    public void drawPreview(Stroke stroke, Canvas previewCanvas, float left, float top, float scale)
     {
     }
 
     public abstract void setColor(int color);
 
+    /**
+     * Furthest distance from a touch point that this brush may paint.
+     *
+     * @return
+     *  Distance in pixels.
+     */
+    public abstract float getReach();
+
+    /**
+     * Number of points before the newest that a segment may draw back to.
+     * Tiles are joined over the bounds of these points, grown by
+     * getReach().
+     *
+     * @return
+     *  1 for brushes that only draw from the previous point.
+     */
+    public int getTrail()
+    {
+        return 1;
+    }
+
+    /**
+     * Check if a region is within buffer of a layer. Clips bounds to the
+     * layer when it is.
+     *
+     * @param bounds
+     *  Region in canvas coordinates.
+     * @param canvas
+     *  Canvas of the layer.
+     * @param left, top
+     *  Position of the layer on the canvas.
+     * @param buffer
+     *  Distance outside the layer that still counts.
+     */
+    protected static boolean isNear(RectF bounds, Canvas canvas, float left, float top, float buffer)
+    {
+        return bounds.intersect(
+                left - buffer, top - buffer,
+                left + canvas.getWidth() + buffer, top + canvas.getHeight() + buffer
+        );
+    }
+
+    /**
+     * Grow a damage region by painted bounds.
+     *
+     * @param damage
+     *  Region to grow, in layer coordinates. May be null.
+     * @param bounds
+     *  Painted bounds in canvas coordinates, excluding stroke width.
+     * @param halfWidth
+     *  Distance the paint spreads beyond bounds.
+     * @param left, top
+     *  Position of the layer on the canvas.
+     */
+    protected static void addDamage(RectF damage, RectF bounds, float halfWidth, float left, float top)
+    {
+        if (damage != null)
+        {
+            damage.union(
+                    bounds.left - halfWidth - left, bounds.top - halfWidth - top,
+                    bounds.right + halfWidth - left, bounds.bottom + halfWidth - top
+            );
+        }
+    }
+
+    /**
+     * Grow a damage region by a painted circle.
+     */
+    protected static void addDamage(RectF damage, float x, float y, float radius, float left, float top)
+    {
+        if (damage != null)
+        {
+            damage.union(
+                    x - radius - left, y - radius - top,
+                    x + radius - left, y + radius - top
+            );
+        }
+    }
+
+    /**
+     * Check if a point is within buffer of a layer.
+     */
+    protected static boolean isNear(Coordinate<Float> point, Canvas canvas, float left, float top, float buffer)
+    {
+        return point.x >= left - buffer && point.y >= top - buffer
+            && point.x <= left + canvas.getWidth() + buffer
+            && point.y <= top + canvas.getHeight() + buffer;
+    }
 }
@@ -13,7 +13,6 @@ import android.graphics.RectF;
 import java.util.ArrayList;
 
 import edu.calvin.equinox.magnumopus.Coordinate;
-import edu.calvin.equinox.magnumopus.Tile;
 
 /**
  * Soft bristled paint brush.
@@ -22,18 +21,18 @@ import edu.calvin.equinox.magnumopus.Tile;
 public class PaintBrush extends Brush
 {
     /**
-     * Bitmap of active user drawings.
+     * Bitmap of the stroke preview, covering the preview canvas.
      */
     private Bitmap m_previewLayer;
     /**
      * Canvas for active drawing.
      */
     private Canvas m_previewLayerCanvas;
-
     /**
-     * Canvas this brush paints on.
+     * Position of the preview layer on the tiling canvas.
      */
-    private Canvas m_canvas;
+    private float m_previewLeft;
+    private float m_previewTop;
 
     /**
      * Color this brush paints with.
@@ -46,9 +45,9 @@ public class PaintBrush extends Brush
     private Path m_stroke;
 
     /**
-     * History of all motion coordinates from the current draw cycle.
+     * Cached bounds of the stroke being drawn.
      */
-    private ArrayList<Coordinate<Float>> m_drawTrack;
+    private RectF m_bounds;
 
     /**
      * Relative coordinates of each bristle on this brush.
@@ -70,16 +69,14 @@ public class PaintBrush extends Brush
      */
     private int m_drawnUntil;
 
-    public PaintBrush(Canvas canvas)
-    {
-        m_canvas = canvas;
-
-        m_previewLayer = Bitmap.createBitmap(
-                Tile.TILE_SIZE, Tile.TILE_SIZE,
-                Bitmap.Config.ARGB_8888
-        );
-        m_previewLayerCanvas = new Canvas(m_previewLayer);
+    /**
+     * Curve being previewed, and the brush stamping along it.
+     */
+    private float[] m_anchors;
+    private Stamper m_stamper;
 
+    public PaintBrush()
+    {
         m_paint = new Paint();
         m_paint.setStyle(Paint.Style.STROKE);
         m_paint.setStrokeWidth(10);
@@ -90,8 +87,7 @@ public class PaintBrush extends Brush
         m_paint.setDither(true);
 
         m_stroke = new Path();
-
-        m_drawTrack = new ArrayList<>(48);
+        m_bounds = new RectF();
 
         // Define bristle locations.
         m_bristles = new ArrayList<>();
@@ -109,6 +105,8 @@ public class PaintBrush extends Brush
         setColor(Color.BLUE);
 
         m_drawnUntil = 0;
+        m_anchors = new float[6];
+        m_stamper = new Stamper();
     }
 
     @Override
@@ -138,32 +136,32 @@ public class PaintBrush extends Brush
         }
     }
 
+    @Override
+    public float getReach()
+    {
+        // Outermost bristle, plus stroke width and blur.
+        return m_brushSize / 2;
+    }
 
     @Override
-    public boolean onTouchMove(float x, float y)
+    public boolean drawSegment(Stroke stroke, int index, Canvas canvas, float left, float top, RectF damage)
     {
-        if (!m_drawTrack.isEmpty())
-        {
-            Coordinate<Float> prev = m_drawTrack.get(m_drawTrack.size() - 1);
-            if (Math.abs(x - prev.x) < 6 && Math.abs(y - prev.y) < 6)
-            {
-                return false;
-            }
-        }
-        m_drawTrack.add(new Coordinate<>(x, y));
+        // Only previewed until the stroke ends.
         return false;
     }
 
     @Override
-    public boolean onTouchRelease()
+    public boolean drawStrokeEnd(Stroke stroke, Canvas canvas, float left, float top, RectF damage)
     {
         // Quality render the stroke.
-        RectF bounds = null;
+        boolean checkedBounds = false;
+        canvas.save();
+        canvas.translate(-left, -top);
         for (Coordinate<Float> bristle : m_bristles)
         {
             m_stroke.reset();
 
-            Coordinate<Float> coord = m_drawTrack.get(0);
+            Coordinate<Float> coord = stroke.get(0);
             Coordinate<Float> prev;
 
             // To smooth the stroke, take 3 consecutive points. Use the
@@ -171,10 +169,10 @@ public class PaintBrush extends Brush
             // the second point as the quadratic anchor. Use the midpoint of
             // the second and third points as the end of the curve.
             m_stroke.moveTo(coord.x + bristle.x, coord.y + bristle.y);
-            for (int j = 1; j < m_drawTrack.size(); ++j)
+            for (int j = 1; j < stroke.size(); ++j)
             {
                 prev = coord;
-                coord = m_drawTrack.get(j);
+                coord = stroke.get(j);
                 float anchX = (prev.x + coord.x) / 2;
                 float anchY = (prev.y + coord.y) / 2;
                 m_stroke.quadTo(
@@ -184,172 +182,145 @@ public class PaintBrush extends Brush
             }
             m_stroke.lineTo(coord.x + bristle.x + 0.01f, coord.y + bristle.y + 0.01f);
 
-            if (bounds == null)
+            if (!checkedBounds)
             {
-                bounds = new RectF();
-                m_stroke.computeBounds(bounds, true);
+                checkedBounds = true;
+                m_stroke.computeBounds(m_bounds, true);
                 int buffer = 23;
-                if (!bounds.intersect(-buffer, -buffer, Tile.TILE_SIZE + buffer, Tile.TILE_SIZE + buffer))
+                if (!isNear(m_bounds, canvas, left, top, buffer))
                 {
                     // BlurMaskFilter makes this draw operation very expensive, so
                     // avoid it if possible.
-                    m_drawTrack.clear();
-                    m_drawnUntil = 0;
+                    canvas.restore();
                     return false;
                 }
             }
 
-            m_canvas.drawPath(m_stroke, m_paint);
+            canvas.drawPath(m_stroke, m_paint);
         }
+        canvas.restore();
+        // Bounds were taken from the first bristle; cover every bristle.
+        addDamage(damage, m_bounds, getReach(), left, top);
+        return true;
+    }
 
+    @Override
+    public void onStrokeEnd()
+    {
         // Clear the cached preview data.
-        m_previewLayerCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-        m_drawTrack.clear();
+        if (m_previewLayer != null)
+        {
+            m_previewLayerCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        }
         m_drawnUntil = 0;
-        return true;
     }
 
-    private boolean inBounds(Coordinate<Float> coord)
+    private boolean inBounds(Coordinate<Float> coord, Canvas canvas, float left, float top)
     {
-        float lower = -m_brushSize / 2;
-        float upper = Tile.TILE_SIZE + m_brushSize / 2;
-        return coord.x > lower && coord.x < upper
-                && coord.y > lower && coord.y < upper;
+        return isNear(coord, canvas, left, top, m_brushSize / 2);
     }
 
     @Override
-    public void drawPreview(Canvas previewCanvas)
+    public void drawPreview(Stroke stroke, Canvas previewCanvas, float left, float top, float scale)
     {
-        if (m_drawTrack.isEmpty())
+        if (stroke.isEmpty())
         {
             return;
         }
 
-        Coordinate<Float> prevPrev;
-        Coordinate<Float> prev;
-        Coordinate<Float> coord;
-        float x0, y0,
-              x1, y1,
-              x2, y2;
-        for (; m_drawnUntil < m_drawTrack.size(); ++m_drawnUntil)
+        // One layer for the whole view, kept between strokes. It is drawn
+        // under the view's scale, so it is sized in canvas pixels.
+        int width = (int)Math.ceil(previewCanvas.getWidth() / scale);
+        int height = (int)Math.ceil(previewCanvas.getHeight() / scale);
+        if (m_previewLayer == null
+                || m_previewLayer.getWidth() != width || m_previewLayer.getHeight() != height)
         {
-            coord = m_drawTrack.get(m_drawnUntil);
-            switch (m_drawnUntil)
-            {
-                case 0:
-                    // Nothing drawn yet, put a dot at current location.
-                    m_previewLayerCanvas.drawBitmap(
-                            m_brushBitmap,
-                            coord.x - (float)m_brushSize / 2,
-                            coord.y - (float)m_brushSize / 2,
-                            null
-                    );
-                    continue;
-
-                case 1:
-                    // Insufficient data for quadratic interpolation, draw
-                    // a line instead.
-                    prev = m_drawTrack.get(0);
-                    x0 = prev.x;
-                    y0 = prev.y;
-                    x2 = (x0 + coord.x) / 2;
-                    y2 = (y0 + coord.y) / 2;
-                    x1 = (x0 + x2) / 2;
-                    y1 = (y0 + y2) / 2;
-                    break;
-
-                default:
-                    // Prepare interpolation anchors.
-                    prev = m_drawTrack.get(m_drawnUntil - 1);
-                    prevPrev = m_drawTrack.get(m_drawnUntil - 2);
-                    x0 = (prevPrev.x + prev.x) / 2;
-                    y0 = (prevPrev.y + prev.y) / 2;
-                    x1 = prev.x;
-                    y1 = prev.y;
-                    x2 = (prev.x + coord.x) / 2;
-                    y2 = (prev.y + coord.y) / 2;
-            }
+            m_previewLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            m_previewLayerCanvas = new Canvas(m_previewLayer);
+            m_drawnUntil = 0;
+        }
+        else if (left != m_previewLeft || top != m_previewTop)
+        {
+            m_previewLayerCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            m_drawnUntil = 0;
+        }
+        m_previewLeft = left;
+        m_previewTop = top;
 
-            coord = new Coordinate<>(x0, y0);
-            prev = new Coordinate<>(x0, y0);
-            // Iterate along the curve.
-            for (float t = 0; t <= 1; t += 0.01f)
+        m_previewLayerCanvas.save();
+        m_previewLayerCanvas.translate(-left, -top);
+        m_stamper.set(m_previewLayerCanvas, m_previewLayerCanvas, left, top);
+        for (; m_drawnUntil < stroke.size(); ++m_drawnUntil)
+        {
+            if (m_drawnUntil == 0)
             {
-                Coordinate.quadPoint(
-                        x0, y0,
-                        x1, y1,
-                        x2, y2,
-                        t,
-                        coord
+                // Nothing drawn yet, put a dot at current location.
+                Coordinate<Float> coord = stroke.get(0);
+                m_previewLayerCanvas.drawBitmap(
+                        m_brushBitmap,
+                        coord.x - (float)m_brushSize / 2,
+                        coord.y - (float)m_brushSize / 2,
+                        null
                 );
-
-                if (inBounds(coord) && Coordinate.dist(prev, coord) > 6)
-                {
-                    // Draw point if it is a sufficient distance from the
-                    // previous drawn point.
-                    m_previewLayerCanvas.drawBitmap(
-                            m_brushBitmap,
-                            coord.x - (float)m_brushSize / 2,
-                            coord.y - (float)m_brushSize / 2,
-                            null
-                    );
-
-                    prev.x = coord.x;
-                    prev.y = coord.y;
-                }
+                continue;
             }
+            StrokeSmoother.segment(stroke, m_drawnUntil, m_anchors);
+            StrokeSmoother.walk(m_anchors, StrokeSmoother.SEGMENT_STEP, m_stamper);
         }
+        m_previewLayerCanvas.restore();
 
         previewCanvas.drawBitmap(m_previewLayer, 0, 0, null);
 
-        if (m_drawTrack.size() > 1)
+        // Lead on from the end of the stroke, straight onto the screen.
+        if (StrokeSmoother.lookahead(stroke, m_anchors))
         {
-            coord = m_drawTrack.get(m_drawTrack.size() - 1);
-            prev = m_drawTrack.get(m_drawTrack.size() - 2);
-            float totalDist = Coordinate.dist(prev, coord);
-            if (totalDist <= 6)
-            {
-                return;
-            }
+            previewCanvas.save();
+            previewCanvas.translate(-left, -top);
+            m_stamper.set(previewCanvas, m_previewLayerCanvas, left, top);
+            StrokeSmoother.walk(m_anchors, StrokeSmoother.LOOKAHEAD_STEP, m_stamper);
+            previewCanvas.restore();
+        }
+        m_stamper.set(null, null, 0, 0);
+    }
 
-            x0 = (prev.x + coord.x) / 2;
-            y0 = (prev.y + coord.y) / 2;
-            x1 = coord.x;
-            y1 = coord.y;
-            float scale = 128 / totalDist;
-            x2 = scale * (x1 - x0) + x1;
-            y2 = scale * (y1 - y0) + y1;
-            x1 = (x0 + x2) / 2;
-            y1 = (y0 + y2) / 2;
-
-            coord = new Coordinate<>(x0, y0);
-            prev = new Coordinate<>(x0, y0);
-            // Iterate along the curve.
-            for (float t = 0; t <= 1; t += 0.03f)
-            {
-                Coordinate.quadPoint(
-                        x0, y0,
-                        x1, y1,
-                        x2, y2,
-                        t,
-                        coord
-                );
+    /**
+     * Stamps the preview brush along a smoothed stroke.
+     */
+    private final class Stamper implements StrokeSmoother.Sink
+    {
+        /**
+         * Canvas to stamp on, in canvas coordinates.
+         */
+        private Canvas m_target;
+        /**
+         * Preview layer, covering the view; stamps off it are skipped.
+         */
+        private Canvas m_screen;
+        private float m_left;
+        private float m_top;
+
+        private void set(Canvas target, Canvas screen, float left, float top)
+        {
+            m_target = target;
+            m_screen = screen;
+            m_left = left;
+            m_top = top;
+        }
 
-                if (inBounds(coord) && Coordinate.dist(prev, coord) > 6)
-                {
-                    // Draw point if it is a sufficient distance from the
-                    // previous drawn point.
-                    previewCanvas.drawBitmap(
-                            m_brushBitmap,
-                            coord.x - (float)m_brushSize / 2,
-                            coord.y - (float)m_brushSize / 2,
-                            null
-                    );
-
-                    prev.x = coord.x;
-                    prev.y = coord.y;
-                }
+        @Override
+        public boolean onPoint(Coordinate<Float> point)
+        {
+            if (!inBounds(point, m_screen, m_left, m_top))
+            {
+                return false;
             }
+            m_target.drawBitmap(
+                    m_brushBitmap,
+                    point.x - (float)m_brushSize / 2,
+                    point.y - (float)m_brushSize / 2,
+                    null
+            );
+            return true;
         }
     }
 }
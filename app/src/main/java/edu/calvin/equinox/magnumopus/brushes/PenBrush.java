@@ -6,8 +6,6 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.RectF;
 
-import java.util.ArrayList;
-
 import edu.calvin.equinox.magnumopus.Coordinate;
 import edu.calvin.equinox.magnumopus.Tile;
 
@@ -17,11 +15,6 @@ import edu.calvin.equinox.magnumopus.Tile;
 
 public class PenBrush extends Brush
 {
-    /**
-     * Canvas this brush paints on.
-     */
-    private Canvas m_canvas;
-
     /**
      * Color this brush paints with.
      */
@@ -33,14 +26,12 @@ public class PenBrush extends Brush
     private Path m_stroke;
 
     /**
-     * History of all motion coordinates from the current draw cycle.
+     * Cached bounds of the segment being drawn.
      */
-    private ArrayList<Coordinate<Float>> m_drawTrack;
+    private RectF m_bounds;
 
-    public PenBrush(Canvas canvas)
+    public PenBrush()
     {
-        m_canvas = canvas;
-
         m_paint = new Paint();
         m_paint.setStyle(Paint.Style.STROKE);
         m_paint.setStrokeWidth(4);
@@ -51,7 +42,7 @@ public class PenBrush extends Brush
         m_stroke = new Path();
         m_stroke.setFillType(Path.FillType.WINDING);
 
-        m_drawTrack = new ArrayList<>(48);
+        m_bounds = new RectF();
     }
 
     @Override
@@ -60,72 +51,74 @@ public class PenBrush extends Brush
         m_paint.setColor(color);
     }
 
-
     @Override
-    public boolean onTouchMove(float x, float y)
+    public float getReach()
     {
-        if (!m_drawTrack.isEmpty())
-        {
-            Coordinate<Float> prev = m_drawTrack.get(m_drawTrack.size() - 1);
-            if (Math.abs(x - prev.x) < 6 && Math.abs(y - prev.y) < 6)
-            {
-                return false;
-            }
-        }
-        m_drawTrack.add(new Coordinate<>(x, y));
+        // Nib offset plus stroke width, which also covers the tap dot.
+        return 10;
+    }
 
-        return m_drawTrack.size() > 1 && doDraw(m_canvas, true);
+    @Override
+    public boolean drawSegment(Stroke stroke, int index, Canvas canvas, float left, float top, RectF damage)
+    {
+        return index > 0 && doDraw(stroke, index, canvas, left, top, true, damage);
     }
 
     @Override
-    public boolean onTouchRelease()
+    public boolean drawStrokeEnd(Stroke stroke, Canvas canvas, float left, float top, RectF damage)
     {
-        boolean isDirty = doDraw(m_canvas, false);
-        m_drawTrack.clear();
-        return isDirty;
+        return doDraw(stroke, stroke.size() - 1, canvas, left, top, false, damage);
     }
 
     @Override
-    public void drawPreview(Canvas previewCanvas)
+    public void drawPreview(Stroke stroke, Canvas previewCanvas, float left, float top, float scale)
     {
-        doDraw(previewCanvas, false);
+        doDraw(stroke, stroke.size() - 1, previewCanvas, left, top, false, null);
     }
 
     /**
-     * Draw most recent segment to the canvas.
+     * Draw the segment ending at a point to the canvas.
      *
+     * @param stroke
+     *  The stroke being drawn.
+     * @param index
+     *  Index of the newest point of the segment.
      * @param canvas
      *  Canvas to draw on.
+     * @param left, top
+     *  Position of the canvas on the tiling canvas.
      * @param partial
      *  Should stroke be treated as in-progress.
+     * @param damage
+     *  Region to grow by the painted area, or null.
      *
      * @return
      *  True if canvas was modified.
      */
-    private boolean doDraw(Canvas canvas, boolean partial)
+    private boolean doDraw(Stroke stroke, int index, Canvas canvas, float left, float top, boolean partial, RectF damage)
     {
-        if (m_drawTrack.isEmpty())
+        if (index < 0)
         {
             return false;
         }
 
         int buffer = Tile.TILE_SIZE / 4;
 
-        if (m_drawTrack.size() == 1)
+        if (index == 0)
         {
             // Only tapped? Draw a dot.
-            Coordinate<Float> first = m_drawTrack.get(0);
+            Coordinate<Float> first = stroke.get(0);
 
-            if (first.x < -buffer || first.y < -buffer
-                    || first.x > Tile.TILE_SIZE + buffer || first.y > Tile.TILE_SIZE + buffer)
+            if (!isNear(first, canvas, left, top, buffer))
             {
                 return false;
             }
 
             m_paint.setStyle(Paint.Style.FILL);
-            canvas.drawCircle(first.x, first.y, 5, m_paint);
-            canvas.drawCircle(first.x - 2, first.y - 1, 5, m_paint);
+            canvas.drawCircle(first.x - left, first.y - top, 5, m_paint);
+            canvas.drawCircle(first.x - left - 2, first.y - top - 1, 5, m_paint);
             m_paint.setStyle(Paint.Style.STROKE);
+            addDamage(damage, first.x - 1, first.y, 8, left, top);
             return true;
         }
 
@@ -134,7 +127,7 @@ public class PenBrush extends Brush
         double ang = 2.1;
         int r = 4;
 
-        RectF bounds = null;
+        boolean checkedBounds = false;
 
         // Drawing the pen stroke as an area, then filling it in has the
         // problem that if the stroke crosses itself, the overlapped part
@@ -145,12 +138,11 @@ public class PenBrush extends Brush
             float dx = (i - r / 2f) * (float) Math.cos(ang);
             float dy = (i - r / 2f) * (float) Math.sin(ang);
 
-            int numPoints = m_drawTrack.size();
-            Coordinate<Float> coord = m_drawTrack.get(numPoints - 1);
-            Coordinate<Float> prev = m_drawTrack.get(numPoints - 2);
+            Coordinate<Float> coord = stroke.get(index);
+            Coordinate<Float> prev = stroke.get(index - 1);
             float anchX = (prev.x + coord.x) / 2;
             float anchY = (prev.y + coord.y) / 2;
-            if (numPoints == 2)
+            if (index == 1)
             {
                 // Straight line at beginning of stroke.
                 if (!partial)
@@ -167,7 +159,7 @@ public class PenBrush extends Brush
             else if (partial)
             {
                 // Curved line in middle of stroke.
-                Coordinate<Float> prevPrev = m_drawTrack.get(numPoints - 3);
+                Coordinate<Float> prevPrev = stroke.get(index - 2);
                 float prevAnchX = (prevPrev.x + prev.x) / 2;
                 float prevAnchY = (prevPrev.y + prev.y) / 2;
 
@@ -187,18 +179,23 @@ public class PenBrush extends Brush
 
             m_stroke.close();
 
-            if (bounds == null)
+            if (!checkedBounds)
             {
-                bounds = new RectF();
-                m_stroke.computeBounds(bounds, true);
-                if (!bounds.intersect(-buffer, -buffer, Tile.TILE_SIZE + buffer, Tile.TILE_SIZE + buffer))
+                checkedBounds = true;
+                m_stroke.computeBounds(m_bounds, true);
+                if (!isNear(m_bounds, canvas, left, top, buffer))
                 {
                     return false;
                 }
             }
         }
 
+        // Bounds were taken from the first outline; cover the outer one too.
+        canvas.save();
+        canvas.translate(-left, -top);
         canvas.drawPath(m_stroke, m_paint);
+        canvas.restore();
+        addDamage(damage, m_bounds, getReach(), left, top);
         return true;
     }
 }
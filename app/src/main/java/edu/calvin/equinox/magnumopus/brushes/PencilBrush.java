@@ -6,8 +6,6 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.RectF;
 
-import java.util.ArrayList;
-
 import edu.calvin.equinox.magnumopus.Coordinate;
 import edu.calvin.equinox.magnumopus.Tile;
 
@@ -21,9 +19,9 @@ import edu.calvin.equinox.magnumopus.Tile;
 public class PencilBrush extends Brush
 {
     /**
-     * Canvas this brush paints on.
+     * Number of earlier points that shading lines are drawn from.
      */
-    private Canvas m_canvas;
+    private static final int TRAIL = 5;
 
     /**
      * Color this brush paints with.
@@ -36,14 +34,12 @@ public class PencilBrush extends Brush
     private Path m_stroke;
 
     /**
-     * History of all motion coordinates from the current draw cycle.
+     * Cached bounds of the shading line being drawn.
      */
-    private ArrayList<Coordinate<Float>> m_drawTrack;
+    private RectF m_bounds;
 
-    public PencilBrush(Canvas canvas)
+    public PencilBrush()
     {
-        m_canvas = canvas;
-
         m_paint = new Paint();
         m_paint.setStyle(Paint.Style.STROKE);
         m_paint.setStrokeWidth(3);
@@ -52,8 +48,7 @@ public class PencilBrush extends Brush
         m_paint.setColor(Color.argb(100, 0, 0, 0));
 
         m_stroke = new Path();
-
-        m_drawTrack = new ArrayList<>(64);
+        m_bounds = new RectF();
     }
 
     @Override
@@ -67,55 +62,82 @@ public class PencilBrush extends Brush
         ));
     }
 
+    @Override
+    public float getReach()
+    {
+        // Shading curves stay inside the bounds of the trail; past them,
+        // only the line width and the dot drawn for a tap reach out.
+        return 8;
+    }
+
+    @Override
+    public int getTrail()
+    {
+        return TRAIL;
+    }
 
     /**
      * Event handler for draw movement.
      *
+     * @param stroke
+     *  The stroke being drawn.
      * @param x
      *  The x coordinate of the current position.
      * @param y
      *  The y coordinate of the current position.
      */
     @Override
-    public boolean onTouchMove(float x, float y)
+    public int addPoint(Stroke stroke, float x, float y)
     {
         Coordinate<Float> cur = new Coordinate<>(x, y);
-        boolean isDirty = false;
-        if (m_drawTrack.size() > 0)
+        int added = 0;
+        if (!stroke.isEmpty())
         {
-            Coordinate<Float> prev = m_drawTrack.get(m_drawTrack.size() - 1);
+            Coordinate<Float> prev = stroke.last();
             float dist = Coordinate.dist(prev, cur);
             if (dist < 4)
             {
                 // Very little movement.
-                return false;
+                return 0;
             }
 
             if (dist > 64)
             {
                 // Too much movement.
-                isDirty = onTouchMove((x + prev.x) / 2, (y + prev.y) / 2);
+                added = addPoint(stroke, (x + prev.x) / 2, (y + prev.y) / 2);
             }
         }
 
         // Record current position.
-        m_drawTrack.add(cur);
+        stroke.add(x, y);
+        return added + 1;
+    }
 
-        RectF bounds = new RectF();
+    @Override
+    public boolean drawSegment(Stroke stroke, int index, Canvas canvas, float left, float top, RectF damage)
+    {
+        boolean isDirty = false;
         int buffer = Tile.TILE_SIZE / 4;
 
-        int len = m_drawTrack.size();
+        Coordinate<Float> cur = stroke.get(index);
+        float x = cur.x;
+        float y = cur.y;
+
+        canvas.save();
+        canvas.translate(-left, -top);
+
+        int len = index + 1;
         // Draw lines from the last n recorded positions to the current position.
-        for (int i = Math.max(0, len - 6); i < len - 1; i += 2)
+        for (int i = Math.max(0, len - 1 - TRAIL); i < len - 1; i += 2)
         {
-            Coordinate<Float> prev = m_drawTrack.get(i);
+            Coordinate<Float> prev = stroke.get(i);
             // Compute an anchor as the average of the last n points so that
             // the shading lines are pulled closer to the actual draw path.
             float anchX = prev.x;
             float anchY = prev.y;
             for (int j = i + 1; j < len; ++j)
             {
-                cur = m_drawTrack.get(j);
+                cur = stroke.get(j);
                 anchX += cur.x;
                 anchY += cur.y;
             }
@@ -126,12 +148,16 @@ public class PencilBrush extends Brush
             m_stroke.moveTo(prev.x, prev.y);
             m_stroke.quadTo(anchX, anchY, x, y);
 
-            m_stroke.computeBounds(bounds, true);
-            isDirty = isDirty || bounds.intersect(-buffer, -buffer, Tile.TILE_SIZE + buffer, Tile.TILE_SIZE + buffer);
-
-            m_canvas.drawPath(m_stroke, m_paint);
+            m_stroke.computeBounds(m_bounds, true);
+            if (isNear(m_bounds, canvas, left, top, buffer))
+            {
+                isDirty = true;
+                canvas.drawPath(m_stroke, m_paint);
+                addDamage(damage, m_bounds, 2, left, top);
+            }
         }
 
+        canvas.restore();
         return isDirty;
     }
 
@@ -139,27 +165,25 @@ public class PencilBrush extends Brush
      * Event handler for draw end.
      */
     @Override
-    public boolean onTouchRelease()
+    public boolean drawStrokeEnd(Stroke stroke, Canvas canvas, float left, float top, RectF damage)
     {
-        if (m_drawTrack.size() == 1)
+        if (stroke.size() == 1)
         {
             int buffer = Tile.TILE_SIZE / 4;
             // The canvas was just tapped, so draw a dot.
-            Coordinate<Float> first = m_drawTrack.get(0);
-            m_drawTrack.clear();
-            if (first.x < -buffer || first.y < -buffer
-                    || first.x > Tile.TILE_SIZE + buffer || first.y > Tile.TILE_SIZE + buffer)
+            Coordinate<Float> first = stroke.get(0);
+            if (!isNear(first, canvas, left, top, buffer))
             {
                 return false;
             }
             m_paint.setStyle(Paint.Style.FILL);
-            m_canvas.drawCircle(first.x, first.y, 5, m_paint);
-            m_canvas.drawCircle(first.x - 2, first.y - 1, 5, m_paint);
+            canvas.drawCircle(first.x - left, first.y - top, 5, m_paint);
+            canvas.drawCircle(first.x - left - 2, first.y - top - 1, 5, m_paint);
             m_paint.setStyle(Paint.Style.STROKE);
+            addDamage(damage, first.x - 1, first.y, 8, left, top);
             return true;
         }
 
-        m_drawTrack.clear();
         return false;
     }
 }
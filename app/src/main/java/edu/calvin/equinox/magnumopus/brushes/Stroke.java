@@ -0,0 +1,59 @@
+package edu.calvin.equinox.magnumopus.brushes;
+
+import java.util.ArrayList;
+
+import edu.calvin.equinox.magnumopus.Coordinate;
+
+/**
+ * Track of the stroke currently being drawn, in canvas coordinates.
+ *
+ * One stroke is shared by every tile; each tile rasterizes the part of it
+ * that falls on the tile.
+ */
+
+public class Stroke
+{
+    /**
+     * History of all motion coordinates from the current draw cycle.
+     */
+    private ArrayList<Coordinate<Float>> m_track;
+
+    public Stroke()
+    {
+        m_track = new ArrayList<>(64);
+    }
+
+    public int size()
+    {
+        return m_track.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return m_track.isEmpty();
+    }
+
+    public Coordinate<Float> get(int index)
+    {
+        return m_track.get(index);
+    }
+
+    /**
+     * @return
+     *  The most recently added point.
+     */
+    public Coordinate<Float> last()
+    {
+        return m_track.get(m_track.size() - 1);
+    }
+
+    public void add(float x, float y)
+    {
+        m_track.add(new Coordinate<>(x, y));
+    }
+
+    public void clear()
+    {
+        m_track.clear();
+    }
+}
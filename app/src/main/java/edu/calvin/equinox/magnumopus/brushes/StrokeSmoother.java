@@ -0,0 +1,160 @@
+package edu.calvin.equinox.magnumopus.brushes;
+
+import edu.calvin.equinox.magnumopus.Coordinate;
+
+/**
+ * Smooths a stroke into evenly spaced brush stamps.
+ *
+ * To smooth the stroke, take 3 consecutive points. Use the midpoint of the
+ * first and second as the start of the curve, the second point as the
+ * quadratic anchor, and the midpoint of the second and third as the end.
+ * Stamps go along each curve wherever they are far enough from the last
+ * one. Plain Java, so the benchmarks can run it off the device.
+ */
+
+public final class StrokeSmoother
+{
+    /**
+     * Receives stamps along a curve.
+     */
+    public interface Sink
+    {
+        /**
+         * @param point
+         *  Position of the stamp. Only valid during the call.
+         *
+         * @return
+         *  True if the stamp was drawn, false if it was skipped.
+         */
+        boolean onPoint(Coordinate<Float> point);
+    }
+
+    /**
+     * Least distance between stamps.
+     */
+    public static final float SPACING = 6;
+    /**
+     * Steps along a curve between points of the stroke.
+     */
+    public static final float SEGMENT_STEP = 0.01f;
+    /**
+     * Steps along the curve leading past the end of the stroke.
+     */
+    public static final float LOOKAHEAD_STEP = 0.03f;
+    /**
+     * How far the lead curve reaches past the end of the stroke.
+     */
+    private static final float LOOKAHEAD = 128;
+
+    private StrokeSmoother()
+    {
+    }
+
+    /**
+     * Find the curve from the previous point of a stroke up to a point.
+     *
+     * @param index
+     *  Index of the point, at least 1.
+     * @param anchors
+     *  Filled with x0, y0, x1, y1, x2, y2: start, anchor and end.
+     */
+    public static void segment(Stroke stroke, int index, float[] anchors)
+    {
+        Coordinate<Float> coord = stroke.get(index);
+        Coordinate<Float> prev = stroke.get(index - 1);
+        if (index == 1)
+        {
+            // Insufficient data for quadratic interpolation, draw a line
+            // instead.
+            float x0 = prev.x;
+            float y0 = prev.y;
+            float x2 = (x0 + coord.x) / 2;
+            float y2 = (y0 + coord.y) / 2;
+            set(anchors, x0, y0, (x0 + x2) / 2, (y0 + y2) / 2, x2, y2);
+            return;
+        }
+
+        Coordinate<Float> prevPrev = stroke.get(index - 2);
+        set(anchors,
+            (prevPrev.x + prev.x) / 2, (prevPrev.y + prev.y) / 2,
+            prev.x, prev.y,
+            (prev.x + coord.x) / 2, (prev.y + coord.y) / 2);
+    }
+
+    /**
+     * Find a curve leading on from the end of a stroke, in the direction
+     * it last moved, so the preview keeps up with the finger.
+     *
+     * @param anchors
+     *  Filled as by segment().
+     *
+     * @return
+     *  False if the stroke has not moved far enough to have a direction.
+     */
+    public static boolean lookahead(Stroke stroke, float[] anchors)
+    {
+        if (stroke.size() < 2)
+        {
+            return false;
+        }
+        Coordinate<Float> coord = stroke.get(stroke.size() - 1);
+        Coordinate<Float> prev = stroke.get(stroke.size() - 2);
+        float totalDist = Coordinate.dist(prev, coord);
+        if (totalDist <= SPACING)
+        {
+            return false;
+        }
+
+        float x0 = (prev.x + coord.x) / 2;
+        float y0 = (prev.y + coord.y) / 2;
+        float x1 = coord.x;
+        float y1 = coord.y;
+        float scale = LOOKAHEAD / totalDist;
+        float x2 = scale * (x1 - x0) + x1;
+        float y2 = scale * (y1 - y0) + y1;
+        set(anchors, x0, y0, (x0 + x2) / 2, (y0 + y2) / 2, x2, y2);
+        return true;
+    }
+
+    /**
+     * Place stamps along a curve.
+     *
+     * @param anchors
+     *  The curve, from segment() or lookahead().
+     * @param step
+     *  Fraction of the curve between candidate stamps.
+     */
+    public static void walk(float[] anchors, float step, Sink sink)
+    {
+        Coordinate<Float> coord = new Coordinate<>(anchors[0], anchors[1]);
+        Coordinate<Float> prev = new Coordinate<>(anchors[0], anchors[1]);
+        // Iterate along the curve.
+        for (float t = 0; t <= 1; t += step)
+        {
+            Coordinate.quadPoint(
+                    anchors[0], anchors[1],
+                    anchors[2], anchors[3],
+                    anchors[4], anchors[5],
+                    t,
+                    coord
+            );
+
+            // Only stamp a sufficient distance from the previous stamp.
+            if (Coordinate.dist(prev, coord) > SPACING && sink.onPoint(coord))
+            {
+                prev.x = coord.x;
+                prev.y = coord.y;
+            }
+        }
+    }
+
+    private static void set(float[] anchors, float x0, float y0, float x1, float y1, float x2, float y2)
+    {
+        anchors[0] = x0;
+        anchors[1] = y0;
+        anchors[2] = x1;
+        anchors[3] = y1;
+        anchors[4] = x2;
+        anchors[5] = y2;
+    }
+}
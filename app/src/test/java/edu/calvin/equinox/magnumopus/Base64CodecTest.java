@@ -0,0 +1,57 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Base64CodecTest
+{
+    private static final String[][] VECTORS = {
+            {"", ""},
+            {"f", "Zg=="},
+            {"fo", "Zm8="},
+            {"foo", "Zm9v"},
+            {"foob", "Zm9vYg=="},
+            {"fooba", "Zm9vYmE="},
+            {"foobar", "Zm9vYmFy"},
+    };
+
+    @Test
+    public void matchesStandardVectors() throws Exception
+    {
+        for (String[] vector : VECTORS)
+        {
+            byte[] data = vector[0].getBytes("US-ASCII");
+            assertEquals(vector[1], Base64Codec.encode(data));
+            assertArrayEquals(data, Base64Codec.decode(vector[1]));
+        }
+    }
+
+    @Test
+    public void roundTripsBinary()
+    {
+        Random random = new Random(7);
+        for (int length = 0; length < 64; ++length)
+        {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertArrayEquals(data, Base64Codec.decode(Base64Codec.encode(data)));
+        }
+    }
+
+    @Test
+    public void decodeSkipsWhitespaceAndMissingPadding() throws Exception
+    {
+        assertArrayEquals("foobar".getBytes("US-ASCII"), Base64Codec.decode("Zm9v\nYmFy\n"));
+        assertArrayEquals("fo".getBytes("US-ASCII"), Base64Codec.decode("Zm8"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeRejectsOtherCharacters()
+    {
+        Base64Codec.decode("Zm9v*mFy");
+    }
+}
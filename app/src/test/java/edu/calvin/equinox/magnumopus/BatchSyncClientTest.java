@@ -0,0 +1,136 @@
+package edu.calvin.equinox.magnumopus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchSyncClientTest
+{
+    /**
+     * Stand-in for the canvas server: answers with the tiles whose stored
+     * version is newer than the client's.
+     */
+    private HttpServer m_server;
+    private final Map<String, Integer> m_versions = new HashMap<>();
+    private int m_requests;
+
+    @Before
+    public void startServer() throws Exception
+    {
+        m_server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        m_server.createContext("/equinox/sync/tiles/1", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                ++m_requests;
+                try
+                {
+                    JSONArray tiles = new JSONObject(readBody(exchange.getRequestBody()))
+                            .getJSONArray("tiles");
+                    JSONArray changed = new JSONArray();
+                    for (int i = 0; i < tiles.length(); ++i)
+                    {
+                        JSONObject tile = tiles.getJSONObject(i);
+                        Integer version = m_versions.get(tile.getInt("x") + "/" + tile.getInt("y"));
+                        if (version != null && version > tile.getInt("version"))
+                        {
+                            tile.put("version", version);
+                            tile.put("data", "AAAA");
+                            changed.put(tile);
+                        }
+                    }
+                    reply(exchange, 200, new JSONObject().put("tiles", changed).toString());
+                } catch (Exception e)
+                {
+                    reply(exchange, 500, "");
+                }
+            }
+        });
+        m_server.start();
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        m_server.stop(0);
+    }
+
+    @Test
+    public void returnsOnlyChangedTilesInOneRequest() throws Exception
+    {
+        m_versions.put("0/0", 3);
+        m_versions.put("256/0", 1);
+        m_versions.put("0/256", 7);
+
+        BatchSyncClient client = new BatchSyncClient(url("/equinox/sync/tiles/1"));
+        client.add(0, 0, 2);
+        client.add(256, 0, 1);
+        client.add(0, 256, 7);
+        client.add(256, 256, 0);
+        assertEquals(4, client.getPendingCount());
+
+        List<JSONObject> updates = client.sync(client.takeRequest());
+        assertEquals(0, client.getPendingCount());
+        assertEquals(1, m_requests);
+        assertEquals(1, updates.size());
+        assertEquals(0, updates.get(0).getInt("x"));
+        assertEquals(3, updates.get(0).getInt("version"));
+        assertTrue(client.isSupported());
+    }
+
+    @Test
+    public void missingEndpointMarksUnsupported() throws Exception
+    {
+        BatchSyncClient client = new BatchSyncClient(url("/equinox/sync/tiles/2"));
+        client.add(0, 0, 0);
+        assertNull(client.sync(client.takeRequest()));
+        assertFalse(client.isSupported());
+    }
+
+    private String url(String path)
+    {
+        return "http://127.0.0.1:" + m_server.getAddress().getPort() + path;
+    }
+
+    private static String readBody(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0)
+        {
+            body.write(buf, 0, n);
+        }
+        return body.toString("UTF-8");
+    }
+
+    private static void reply(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] data = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, data.length == 0 ? -1 : data.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(data);
+        os.close();
+    }
+}
@@ -0,0 +1,209 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CacheWriterTest
+{
+    private static class TestEntry implements CacheWriter.Entry
+    {
+        final String m_value;
+        volatile boolean m_isDiscarded;
+
+        TestEntry(String value)
+        {
+            m_value = value;
+        }
+
+        @Override
+        public byte[] encode()
+        {
+            return m_value.getBytes();
+        }
+
+        @Override
+        public void discard()
+        {
+            m_isDiscarded = true;
+        }
+    }
+
+    /**
+     * Store that holds up the writer until the gate opens.
+     */
+    private final List<String> m_stored = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch m_gate = new CountDownLatch(1);
+    private final CountDownLatch m_started = new CountDownLatch(1);
+    private CacheWriter<TestEntry> m_writer;
+
+    @Before
+    public void setUp()
+    {
+        m_writer = new CacheWriter<>(new CacheWriter.Store()
+        {
+            @Override
+            public void put(String key, byte[] value)
+            {
+                m_started.countDown();
+                try
+                {
+                    m_gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                m_stored.add(key + "=" + new String(value));
+            }
+
+            @Override
+            public byte[] get(String key)
+            {
+                synchronized (m_stored)
+                {
+                    for (int i = m_stored.size() - 1; i >= 0; --i)
+                    {
+                        if (m_stored.get(i).startsWith(key + "="))
+                        {
+                            return m_stored.get(i).substring(key.length() + 1).getBytes();
+                        }
+                    }
+                }
+                return null;
+            }
+        }, 2);
+    }
+
+    /**
+     * Queue a first write and wait for the writer to block on it, so later
+     * writes stay queued.
+     */
+    private void blockWriter() throws Exception
+    {
+        m_writer.write("busy", new TestEntry("0"));
+        assertTrue(m_started.await(5, TimeUnit.SECONDS));
+    }
+
+    private void awaitWritten(int count) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (m_writer.getWrittenCount() < count && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        assertEquals(count, m_writer.getWrittenCount());
+    }
+
+    @Test
+    public void repeatedWritesCoalesce() throws Exception
+    {
+        blockWriter();
+        TestEntry first = new TestEntry("1");
+        m_writer.write("a", first);
+        m_writer.write("a", new TestEntry("2"));
+        assertTrue(first.m_isDiscarded);
+        assertEquals(1, m_writer.getPendingCount());
+
+        m_gate.countDown();
+        awaitWritten(2);
+        assertEquals(1, m_writer.getCoalescedCount());
+        assertEquals("busy=0", m_stored.get(0));
+        assertEquals("a=2", m_stored.get(1));
+    }
+
+    @Test
+    public void fullQueueDropsOldest() throws Exception
+    {
+        blockWriter();
+        TestEntry oldest = new TestEntry("a");
+        m_writer.write("a", oldest);
+        m_writer.write("b", new TestEntry("b"));
+        m_writer.write("c", new TestEntry("c"));
+        assertTrue(oldest.m_isDiscarded);
+        assertEquals(1, m_writer.getDroppedCount());
+
+        m_gate.countDown();
+        awaitWritten(3);
+        assertEquals("b=b", m_stored.get(1));
+        assertEquals("c=c", m_stored.get(2));
+    }
+
+    @Test
+    public void takeReturnsWaitingWrite() throws Exception
+    {
+        blockWriter();
+        TestEntry entry = new TestEntry("1");
+        m_writer.write("a", entry);
+        assertSame(entry, m_writer.take("a"));
+        assertNull(m_writer.take("a"));
+
+        m_gate.countDown();
+        awaitWritten(1);
+        assertEquals(1, m_stored.size());
+    }
+
+    @Test
+    public void readWritesWaitingEntryFirst() throws Exception
+    {
+        blockWriter();
+        TestEntry entry = new TestEntry("1");
+        m_writer.write("a", entry);
+
+        final byte[][] read = new byte[1][];
+        Thread reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                read[0] = m_writer.read("a");
+            }
+        });
+        reader.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (m_writer.getPendingCount() > 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        m_gate.countDown();
+        reader.join(5000);
+
+        assertEquals("1", new String(read[0]));
+        assertTrue(entry.m_isDiscarded);
+        awaitWritten(2);
+        assertTrue(m_stored.contains("a=1"));
+    }
+
+    @Test
+    public void readWaitsForWriteInFlight() throws Exception
+    {
+        blockWriter();
+        assertNull(m_writer.take("busy"));
+
+        final byte[][] read = new byte[1][];
+        Thread reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                read[0] = m_writer.read("busy");
+            }
+        });
+        reader.start();
+        reader.join(100);
+        assertTrue(reader.isAlive());
+
+        m_gate.countDown();
+        reader.join(5000);
+        assertEquals("0", new String(read[0]));
+    }
+}
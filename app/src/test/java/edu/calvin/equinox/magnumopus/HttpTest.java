@@ -0,0 +1,118 @@
+package edu.calvin.equinox.magnumopus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class HttpTest
+{
+    /**
+     * Stand-in for a tile server holding one tile at version 3, which
+     * gzips its answers when asked.
+     */
+    private HttpServer m_server;
+    private String m_url;
+    private final Set<Integer> m_clientPorts = new HashSet<>();
+
+    @Before
+    public void startServer() throws Exception
+    {
+        m_server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        m_server.createContext("/tile", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                synchronized (m_clientPorts)
+                {
+                    m_clientPorts.add(exchange.getRemoteAddress().getPort());
+                }
+                if (Http.versionTag(3).equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+                {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                    exchange.close();
+                    return;
+                }
+
+                byte[] body = "{\"version\":3}".getBytes("UTF-8");
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding")))
+                {
+                    ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+                    GZIPOutputStream gz = new GZIPOutputStream(zipped);
+                    gz.write(body);
+                    gz.close();
+                    body = zipped.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        m_server.start();
+        m_url = "http://127.0.0.1:" + m_server.getAddress().getPort() + "/tile";
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        m_server.stop(0);
+    }
+
+    @Test
+    public void decodesGzippedBodies() throws Exception
+    {
+        HttpURLConnection conn = Http.open(m_url);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("gzip", conn.getContentEncoding());
+        assertEquals(-1, Http.getContentLength(conn));
+        assertEquals("{\"version\":3}", Http.readString(conn));
+    }
+
+    @Test
+    public void currentVersionIsNotModified() throws Exception
+    {
+        HttpURLConnection conn = Http.open(m_url);
+        Http.setIfNoneMatch(conn, 3);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, conn.getResponseCode());
+        Http.discard(conn);
+
+        conn = Http.open(m_url);
+        Http.setIfNoneMatch(conn, 2);
+        assertEquals(200, conn.getResponseCode());
+        Http.readString(conn);
+    }
+
+    @Test
+    public void connectionsAreReused() throws Exception
+    {
+        for (int i = 0; i < 3; ++i)
+        {
+            HttpURLConnection conn = Http.open(m_url);
+            Http.readString(conn);
+
+            // A body that is not wanted is drained, not dropped with the
+            // connection. (The test server always closes after a 304.)
+            conn = Http.open(m_url);
+            conn.getResponseCode();
+            Http.discard(conn);
+        }
+        assertEquals(1, m_clientPorts.size());
+    }
+}
@@ -0,0 +1,157 @@
+package edu.calvin.equinox.magnumopus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InvalidationChannelTest
+{
+    private static final Executor DIRECT = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    /**
+     * Stand-in server: announces one change, then reports no changes.
+     */
+    private HttpServer m_server;
+    private final List<String> m_queries = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws Exception
+    {
+        m_server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        m_server.createContext("/equinox/watch/1", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                String query = exchange.getRequestURI().getQuery();
+                m_queries.add(String.valueOf(query));
+                if (query == null)
+                {
+                    byte[] body = ("{\"cursor\":5,\"tiles\":["
+                            + "{\"canvas\":1,\"x\":256,\"y\":-512,\"version\":4}]}").getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                }
+                else
+                {
+                    try
+                    {
+                        // Hold the request like a long poll.
+                        Thread.sleep(50);
+                    } catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    exchange.sendResponseHeaders(204, -1);
+                    exchange.close();
+                }
+            }
+        });
+        m_server.start();
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        m_server.stop(0);
+    }
+
+    private static class RecordingListener implements InvalidationChannel.Listener
+    {
+        final List<String> m_events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch m_changed = new CountDownLatch(1);
+        volatile boolean m_isConnected;
+
+        @Override
+        public void onTileChanged(int canvasID, int x, int y, int version)
+        {
+            m_events.add(canvasID + ":" + x + "," + y + "@" + version);
+            m_changed.countDown();
+        }
+
+        @Override
+        public void onChannelStateChanged(boolean isConnected)
+        {
+            m_isConnected = isConnected;
+        }
+    }
+
+    @Test
+    public void deliversAnnouncedTilesAndResumesFromCursor() throws Exception
+    {
+        RecordingListener listener = new RecordingListener();
+        InvalidationChannel channel = new InvalidationChannel(url("/equinox/watch/1"), listener, DIRECT);
+        channel.start();
+        try
+        {
+            assertTrue(listener.m_changed.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 500 && m_queries.size() < 2; ++i)
+            {
+                Thread.sleep(10);
+            }
+        } finally
+        {
+            channel.stop();
+        }
+
+        assertEquals("[1:256,-512@4]", listener.m_events.toString());
+        assertTrue(listener.m_isConnected);
+        assertEquals("since=5", m_queries.get(1));
+    }
+
+    @Test
+    public void missingChannelStops() throws Exception
+    {
+        RecordingListener listener = new RecordingListener();
+        InvalidationChannel channel = new InvalidationChannel(url("/equinox/watch/2"), listener, DIRECT);
+        channel.start();
+        for (int i = 0; i < 500 && channel.isRunning(); ++i)
+        {
+            Thread.sleep(10);
+        }
+        assertFalse(channel.isRunning());
+        assertFalse(channel.isConnected());
+        assertTrue(listener.m_events.isEmpty());
+    }
+
+    @Test
+    public void backoffDoublesUpToLimit() throws Exception
+    {
+        assertEquals(2 * InvalidationChannel.MIN_BACKOFF_MS,
+                InvalidationChannel.nextBackoff(InvalidationChannel.MIN_BACKOFF_MS));
+        assertEquals(InvalidationChannel.MAX_BACKOFF_MS,
+                InvalidationChannel.nextBackoff(InvalidationChannel.MAX_BACKOFF_MS));
+    }
+
+    private String url(String path)
+    {
+        return "http://127.0.0.1:" + m_server.getAddress().getPort() + path;
+    }
+}
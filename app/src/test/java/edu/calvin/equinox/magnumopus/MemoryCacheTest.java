@@ -0,0 +1,96 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MemoryCacheTest
+{
+    private List<String> m_evicted;
+    private MemoryCache<int[]> m_cache;
+
+    @Before
+    public void setUp()
+    {
+        m_evicted = new ArrayList<>();
+        m_cache = new MemoryCache<>(100, new MemoryCache.Evictor<int[]>()
+        {
+            @Override
+            public long sizeOf(int[] value)
+            {
+                return value.length;
+            }
+
+            @Override
+            public void onEvicted(String key, int[] value)
+            {
+                m_evicted.add(key);
+            }
+        });
+    }
+
+    @Test
+    public void takeRemovesAndCountsHits()
+    {
+        int[] a = new int[10];
+        m_cache.put("a", a);
+        assertEquals(a, m_cache.take("a"));
+        assertNull(m_cache.take("a"));
+
+        assertEquals(1, m_cache.getHits());
+        assertEquals(1, m_cache.getMisses());
+        assertEquals(0, m_cache.getBytes());
+        assertEquals(0, m_evicted.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedToFit()
+    {
+        m_cache.put("a", new int[40]);
+        m_cache.put("b", new int[40]);
+        m_cache.put("c", new int[40]);
+
+        assertEquals(1, m_evicted.size());
+        assertEquals("a", m_evicted.get(0));
+        assertEquals(80, m_cache.getBytes());
+        assertEquals(1, m_cache.getEvictions());
+    }
+
+    @Test
+    public void replacedValuesAreEvicted()
+    {
+        m_cache.put("a", new int[10]);
+        m_cache.put("a", new int[20]);
+
+        assertEquals(1, m_evicted.size());
+        assertEquals(1, m_cache.size());
+        assertEquals(20, m_cache.getBytes());
+    }
+
+    @Test
+    public void oversizedValueIsEvictedAtOnce()
+    {
+        m_cache.put("a", new int[10]);
+        m_cache.put("big", new int[200]);
+
+        assertEquals(2, m_evicted.size());
+        assertEquals(0, m_cache.size());
+    }
+
+    @Test
+    public void evictAllIncludesEmptyValues()
+    {
+        m_cache.put("a", new int[10]);
+        m_cache.put("empty", new int[0]);
+        m_cache.evictAll();
+
+        assertEquals(2, m_evicted.size());
+        assertEquals(0, m_cache.size());
+        assertEquals(0, m_cache.getBytes());
+    }
+}
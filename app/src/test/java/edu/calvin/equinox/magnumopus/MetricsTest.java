@@ -0,0 +1,64 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest
+{
+    @Test
+    public void percentilesUseBucketBounds()
+    {
+        Metrics.Histogram histogram = new Metrics.Histogram("test");
+        for (int i = 0; i < 90; ++i)
+        {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 10; ++i)
+        {
+            histogram.record(20000);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals((90 * 100 + 10 * 20000) / 100, histogram.getMeanMicros());
+        assertEquals(250, histogram.getPercentileMicros(0.5));
+        assertEquals(250, histogram.getPercentileMicros(0.9));
+        // The 20 ms bucket runs to 33 ms, but nothing was that slow.
+        assertEquals(20000, histogram.getPercentileMicros(0.95));
+        assertEquals(20000, histogram.getMaxMicros());
+        assertEquals(20000, histogram.getLastMicros());
+    }
+
+    @Test
+    public void slowTimesLandInLastBucket()
+    {
+        Metrics.Histogram histogram = new Metrics.Histogram("test");
+        histogram.record(60 * 1000 * 1000);
+        assertEquals(1, histogram.getBucketCount(Metrics.BOUNDS_US.length));
+        assertEquals(60 * 1000 * 1000, histogram.getPercentileMicros(0.5));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(0.5));
+    }
+
+    @Test
+    public void dumpListsEveryMetric() throws Exception
+    {
+        Metrics.reset();
+        Metrics.SYNC_LATENCY.record(1500000);
+        Metrics.SYNC_ERRORS.increment();
+
+        StringWriter out = new StringWriter();
+        Metrics.dump(out);
+        String text = out.toString();
+        assertTrue(text.contains("draw count=0 "));
+        assertTrue(text.contains("sync_latency count=1 mean_us=1500000 p50_us=1500000"));
+        assertTrue(text.contains("  <=2000000 1\n"));
+        assertTrue(text.contains("sync_errors 1\n"));
+        Metrics.reset();
+    }
+}
@@ -0,0 +1,34 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OptionalEndpointTest
+{
+    @Test
+    public void missingItemsLeaveEndpointOn()
+    {
+        OptionalEndpoint endpoint = new OptionalEndpoint();
+        endpoint.onResponse(404, 1000);
+        assertTrue(endpoint.isAvailable(1000));
+        endpoint.onResponse(503, 1000);
+        assertTrue(endpoint.isAvailable(1000));
+    }
+
+    @Test
+    public void unsupportedEndpointIsRetriedLater()
+    {
+        OptionalEndpoint endpoint = new OptionalEndpoint();
+        endpoint.onResponse(501, 1000);
+        assertFalse(endpoint.isAvailable(1000));
+        assertFalse(endpoint.isAvailable(1000 + OptionalEndpoint.RETRY_MS - 1));
+        assertTrue(endpoint.isAvailable(1000 + OptionalEndpoint.RETRY_MS));
+
+        endpoint.onResponse(405, 2000);
+        assertFalse(endpoint.isAvailable(2000));
+        endpoint.onResponse(200, 3000);
+        assertTrue(endpoint.isAvailable(3000));
+    }
+}
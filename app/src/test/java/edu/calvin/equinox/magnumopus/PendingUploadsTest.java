@@ -0,0 +1,116 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PendingUploadsTest
+{
+    /**
+     * Stands in for a Tile: edits upload unless a download is in flight.
+     */
+    private static class FakeTile
+    {
+        boolean m_isDirty;
+        boolean m_isSyncing;
+        int m_uploads;
+    }
+
+    private final List<FakeTile> m_released = new ArrayList<>();
+    private PendingUploads<FakeTile> m_pending;
+
+    @Before
+    public void setUp()
+    {
+        m_pending = new PendingUploads<>(new PendingUploads.Owner<FakeTile>()
+        {
+            @Override
+            public boolean isDirty(FakeTile tile)
+            {
+                return tile.m_isDirty;
+            }
+
+            @Override
+            public void upload(int col, int row, FakeTile tile)
+            {
+                if (!tile.m_isSyncing)
+                {
+                    tile.m_isDirty = false;
+                    tile.m_isSyncing = true;
+                    ++tile.m_uploads;
+                }
+            }
+
+            @Override
+            public void release(int col, int row, FakeTile tile)
+            {
+                m_released.add(tile);
+            }
+        });
+    }
+
+    @Test
+    public void cleanTilesAreReleasedAtOnce()
+    {
+        FakeTile tile = new FakeTile();
+        m_pending.add(0, 0, tile);
+        assertEquals(0, tile.m_uploads);
+        assertSame(tile, m_released.get(0));
+        assertEquals(0, m_pending.size());
+    }
+
+    @Test
+    public void dirtyTileUploadsBeforeRelease()
+    {
+        FakeTile tile = new FakeTile();
+        tile.m_isDirty = true;
+        m_pending.add(0, 0, tile);
+        assertEquals(1, tile.m_uploads);
+        assertSame(tile, m_released.get(0));
+    }
+
+    @Test
+    public void panAwayRightAfterDrawing()
+    {
+        // Drawn on while a download was in flight, then scrolled away.
+        FakeTile tile = new FakeTile();
+        tile.m_isDirty = true;
+        tile.m_isSyncing = true;
+        m_pending.add(3, -2, tile);
+        assertEquals(0, tile.m_uploads);
+        assertTrue(m_released.isEmpty());
+
+        // Still busy on the next sync; keep holding it.
+        m_pending.flush();
+        assertTrue(m_released.isEmpty());
+        assertEquals(1, m_pending.size());
+
+        // The download finishes, and the edits go up on the next sync.
+        tile.m_isSyncing = false;
+        m_pending.flush();
+        assertEquals(1, tile.m_uploads);
+        assertSame(tile, m_released.get(0));
+        assertEquals(0, m_pending.size());
+    }
+
+    @Test
+    public void returningTileIsTakenBack()
+    {
+        FakeTile tile = new FakeTile();
+        tile.m_isDirty = true;
+        tile.m_isSyncing = true;
+        m_pending.add(1, 1, tile);
+
+        assertSame(tile, m_pending.take(1, 1));
+        assertNull(m_pending.take(1, 1));
+        m_pending.flush();
+        assertTrue(m_released.isEmpty());
+    }
+}
@@ -0,0 +1,73 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PrefetcherTest
+{
+    private static final int BASE = 256;
+
+    /**
+     * Move steadily at the given speed, in pixels per millisecond.
+     */
+    private static void move(Prefetcher prefetcher, float vx, float vy, long start, int steps)
+    {
+        for (int i = 0; i <= steps; ++i)
+        {
+            prefetcher.onMove(vx * 16, vy * 16, start + i * 16);
+        }
+    }
+
+    @Test
+    public void symmetricAtRest()
+    {
+        Prefetcher prefetcher = new Prefetcher(BASE);
+        float v = prefetcher.getVelocityX(0);
+        assertEquals(0, v, 0);
+        assertEquals(BASE, prefetcher.getBufferBefore(v));
+        assertEquals(BASE, prefetcher.getBufferAfter(v));
+    }
+
+    @Test
+    public void leadsInDirectionOfTravel()
+    {
+        Prefetcher prefetcher = new Prefetcher(BASE);
+        move(prefetcher, 1, 0, 0, 20);
+        long now = 20 * 16;
+
+        float vx = prefetcher.getVelocityX(now);
+        assertEquals(1, vx, 0.05);
+        assertTrue(prefetcher.getBufferAfter(vx) > BASE);
+        assertTrue(prefetcher.getBufferBefore(vx) < BASE);
+
+        float vy = prefetcher.getVelocityY(now);
+        assertEquals(BASE, prefetcher.getBufferBefore(vy));
+        assertEquals(BASE, prefetcher.getBufferAfter(vy));
+    }
+
+    @Test
+    public void fastMotionDropsTrailingBufferAndCapsLead()
+    {
+        Prefetcher prefetcher = new Prefetcher(BASE);
+        move(prefetcher, 0, -20, 0, 20);
+
+        float vy = prefetcher.getVelocityY(20 * 16);
+        assertEquals(0, prefetcher.getBufferAfter(vy));
+        assertEquals(BASE + Prefetcher.MAX_LEAD, prefetcher.getBufferBefore(vy));
+    }
+
+    @Test
+    public void velocityIsForgottenAfterStopping()
+    {
+        Prefetcher prefetcher = new Prefetcher(BASE);
+        move(prefetcher, 1, 1, 0, 20);
+        long later = 20 * 16 + Prefetcher.STOP_MS + 1;
+        assertEquals(0, prefetcher.getVelocityX(later), 0);
+
+        // Moving again starts from rest, not from the old velocity.
+        prefetcher.onMove(-16, 0, later);
+        assertEquals(0, prefetcher.getVelocityX(later), 0);
+    }
+}
@@ -0,0 +1,42 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SolidColorTest
+{
+    @Test
+    public void encodeRoundTrips() throws Exception
+    {
+        int[] colors = {0x00000000, 0xffffffff, 0x80ff4010, 0xff000001};
+        for (int color : colors)
+        {
+            byte[] data = SolidColor.encode(color);
+            assertEquals(SolidColor.ENCODED_LENGTH, data.length);
+            assertTrue(SolidColor.isEncoded(data));
+            assertEquals(color, SolidColor.decode(data));
+        }
+    }
+
+    @Test
+    public void imagesAreNotEncodedColors() throws Exception
+    {
+        byte[] png = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+        byte[] jpeg = {(byte)0xff, (byte)0xd8, (byte)0xff, (byte)0xe0, 0, 0x10, 'J', 'F'};
+        assertFalse(SolidColor.isEncoded(png));
+        assertFalse(SolidColor.isEncoded(jpeg));
+        assertFalse(SolidColor.isEncoded(null));
+        assertFalse(SolidColor.isEncoded(new byte[] {'S', 'O', 'L', 'D'}));
+    }
+
+    @Test
+    public void uniformRows() throws Exception
+    {
+        int[] row = {7, 7, 7, 7, 8};
+        assertTrue(SolidColor.isUniform(row, 4, 7));
+        assertFalse(SolidColor.isUniform(row, 5, 7));
+    }
+}
@@ -0,0 +1,71 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncIntervalTest
+{
+    @Test
+    public void newTilesAreDue() throws Exception
+    {
+        assertTrue(new SyncInterval(new Random(1)).isDue(0));
+    }
+
+    @Test
+    public void quietTilesBackOffToLimit() throws Exception
+    {
+        SyncInterval interval = new SyncInterval(new Random(1));
+        long now = 0;
+        long expected = SyncInterval.MIN_INTERVAL_MS;
+        for (int i = 0; i < 10; ++i)
+        {
+            interval.onQuiet(now);
+            expected = Math.min(expected * 2, SyncInterval.MAX_INTERVAL_MS);
+            assertEquals(expected, interval.getInterval());
+        }
+        assertEquals(SyncInterval.MAX_INTERVAL_MS, interval.getInterval());
+
+        interval.onActivity(now);
+        assertEquals(SyncInterval.MIN_INTERVAL_MS, interval.getInterval());
+    }
+
+    @Test
+    public void dueTimeIsJitteredWithinBounds() throws Exception
+    {
+        Random rand = new Random(42);
+        long earliest = Long.MAX_VALUE;
+        long latest = 0;
+        for (int i = 0; i < 200; ++i)
+        {
+            SyncInterval interval = new SyncInterval(rand);
+            interval.onActivity(1000);
+            assertFalse(interval.isDue(1000 + SyncInterval.MIN_INTERVAL_MS * 8 / 10 - 1));
+            assertTrue(interval.isDue(1000 + SyncInterval.MIN_INTERVAL_MS * 12 / 10));
+
+            long due = 1000;
+            while (!interval.isDue(due))
+            {
+                due += 10;
+            }
+            earliest = Math.min(earliest, due);
+            latest = Math.max(latest, due);
+        }
+        // Tiles that went quiet together spread out.
+        assertTrue(latest - earliest > SyncInterval.MIN_INTERVAL_MS / 10);
+    }
+
+    @Test
+    public void resetMakesTileDue() throws Exception
+    {
+        SyncInterval interval = new SyncInterval(new Random(1));
+        interval.onQuiet(0);
+        assertFalse(interval.isDue(1));
+        interval.reset();
+        assertTrue(interval.isDue(1));
+    }
+}
@@ -0,0 +1,177 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncSchedulerTest
+{
+    private static final Executor DIRECT = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    /**
+     * Job that waits on a latch and records its name when it runs.
+     */
+    private static class TestJob extends SyncScheduler.Job<String>
+    {
+        private final String m_name;
+        private final CountDownLatch m_gate;
+        private final List<String> m_ran;
+        private final CountDownLatch m_done;
+
+        TestJob(String name, CountDownLatch gate, List<String> ran, CountDownLatch done)
+        {
+            m_name = name;
+            m_gate = gate;
+            m_ran = ran;
+            m_done = done;
+        }
+
+        @Override
+        protected String doInBackground()
+        {
+            m_ran.add(m_name);
+            try
+            {
+                m_gate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return m_name;
+        }
+
+        @Override
+        protected void onPostExecute(String result)
+        {
+            m_done.countDown();
+        }
+    }
+
+    @Test
+    public void visibleTilesRunFirst() throws Exception
+    {
+        SyncScheduler scheduler = new SyncScheduler(1, 1, DIRECT);
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+
+        scheduler.submit(new TestJob("first", gate, ran, done), "http://a/1", SyncScheduler.PRIORITY_BUFFER);
+        scheduler.submit(new TestJob("buffer1", gate, ran, done), "http://a/2", SyncScheduler.PRIORITY_BUFFER);
+        scheduler.submit(new TestJob("buffer2", gate, ran, done), "http://a/3", SyncScheduler.PRIORITY_BUFFER);
+        scheduler.submit(new TestJob("visible", gate, ran, done), "http://a/4", SyncScheduler.PRIORITY_VISIBLE);
+        assertEquals(3, scheduler.getQueueDepth());
+
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[first, visible, buffer1, buffer2]", ran.toString());
+        assertEquals(4, scheduler.getCompletedCount());
+    }
+
+    @Test
+    public void busyHostDoesNotBlockOthers() throws Exception
+    {
+        SyncScheduler scheduler = new SyncScheduler(4, 1, DIRECT);
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+
+        scheduler.submit(new TestJob("a1", gate, ran, done), "http://a/1", SyncScheduler.PRIORITY_VISIBLE);
+        scheduler.submit(new TestJob("a2", gate, ran, done), "http://a/2", SyncScheduler.PRIORITY_VISIBLE);
+        scheduler.submit(new TestJob("b1", gate, ran, done), "http://b/1", SyncScheduler.PRIORITY_BUFFER);
+
+        // a2 waits for a1; b1 runs alongside it.
+        assertEquals(2, scheduler.getActiveCount());
+        assertEquals(1, scheduler.getQueueDepth());
+        for (int i = 0; i < 500 && ran.size() < 2; ++i)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(2, ran.size());
+
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("a2", ran.get(2));
+    }
+
+    @Test
+    public void cancelledJobsNeverRun() throws Exception
+    {
+        SyncScheduler scheduler = new SyncScheduler(1, 1, DIRECT);
+        final AtomicInteger delivered = new AtomicInteger();
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        scheduler.submit(new TestJob("first", gate, ran, done), "http://a/1", SyncScheduler.PRIORITY_VISIBLE);
+        SyncScheduler.Job<String> evicted = new SyncScheduler.Job<String>()
+        {
+            @Override
+            protected String doInBackground()
+            {
+                return "evicted";
+            }
+
+            @Override
+            protected void onPostExecute(String result)
+            {
+                delivered.incrementAndGet();
+            }
+        };
+        scheduler.submit(evicted, "http://a/2", SyncScheduler.PRIORITY_VISIBLE);
+        evicted.cancel();
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getCancelledCount());
+
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(0, delivered.get());
+        assertEquals(1, scheduler.getMaxQueueDepth());
+    }
+
+    @Test
+    public void failedJobsAreStillDelivered() throws Exception
+    {
+        SyncScheduler scheduler = new SyncScheduler(1, 1, DIRECT);
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+
+        // An Error, like running out of memory decoding a tile, still
+        // completes the job so its tile can sync again.
+        scheduler.submit(new SyncScheduler.Job<String>()
+        {
+            @Override
+            protected String doInBackground()
+            {
+                throw new OutOfMemoryError("decoding tile");
+            }
+
+            @Override
+            protected void onPostExecute(String result)
+            {
+                results.add(String.valueOf(result));
+                done.countDown();
+            }
+        }, "http://a/1", SyncScheduler.PRIORITY_VISIBLE);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[null]", results.toString());
+        assertEquals(1, scheduler.getCompletedCount());
+    }
+}
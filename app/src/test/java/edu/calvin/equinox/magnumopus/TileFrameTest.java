@@ -0,0 +1,89 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TileFrameTest
+{
+    private static byte[] frame(int version, byte[] payload) throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        TileFrame.writeHeader(os, version);
+        os.write(payload);
+        return os.toByteArray();
+    }
+
+    @Test
+    public void roundTripsWithAndWithoutLength() throws Exception
+    {
+        byte[] payload = new byte[20000];
+        for (int i = 0; i < payload.length; ++i)
+        {
+            payload[i] = (byte)(i * 31);
+        }
+        byte[] body = frame(123456, payload);
+        assertEquals(TileFrame.HEADER_LENGTH + payload.length, body.length);
+
+        TileFrame known = TileFrame.read(new ByteArrayInputStream(body), body.length);
+        assertEquals(123456, known.version);
+        assertArrayEquals(payload, known.data);
+
+        TileFrame streamed = TileFrame.read(new ByteArrayInputStream(body), -1);
+        assertEquals(123456, streamed.version);
+        assertArrayEquals(payload, streamed.data);
+    }
+
+    @Test
+    public void versionOnlyFrameHasNoData() throws Exception
+    {
+        byte[] body = frame(7, new byte[0]);
+        TileFrame frame = TileFrame.read(new ByteArrayInputStream(body), -1);
+        assertEquals(7, frame.version);
+        assertNull(frame.data);
+    }
+
+    @Test
+    public void patchCarriesOffset() throws Exception
+    {
+        byte[] payload = {1, 2, 3, 4, 5};
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        TileFrame.writePatchHeader(os, 9, 12, 200);
+        os.write(payload);
+        byte[] body = os.toByteArray();
+        assertEquals(TileFrame.PATCH_HEADER_LENGTH + payload.length, body.length);
+
+        TileFrame patch = TileFrame.read(new ByteArrayInputStream(body), body.length);
+        assertTrue(patch.isPatch);
+        assertEquals(9, patch.version);
+        assertEquals(12, patch.left);
+        assertEquals(200, patch.top);
+        assertArrayEquals(payload, patch.data);
+
+        assertFalse(TileFrame.read(new ByteArrayInputStream(frame(1, payload)), -1).isPatch);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsJson() throws Exception
+    {
+        byte[] body = "{\"version\":1,\"data\":\"\"}".getBytes("UTF-8");
+        TileFrame.read(new ByteArrayInputStream(body), body.length);
+    }
+
+    @Test
+    public void recognizesContentType() throws Exception
+    {
+        assertTrue(TileFrame.isFrame(TileFrame.CONTENT_TYPE));
+        assertTrue(TileFrame.isFrame(TileFrame.CONTENT_TYPE + "; v=1"));
+        assertFalse(TileFrame.isFrame("application/json; charset=utf8"));
+        assertFalse(TileFrame.isFrame(null));
+    }
+}
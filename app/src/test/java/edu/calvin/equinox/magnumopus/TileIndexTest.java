@@ -0,0 +1,132 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TileIndexTest
+{
+    @Test
+    public void packRoundTripsNegativeIndices() throws Exception
+    {
+        long key = TileIndex.pack(-3, -7);
+        assertEquals(-3, TileIndex.unpackCol(key));
+        assertEquals(-7, TileIndex.unpackRow(key));
+    }
+
+    @Test
+    public void putGetRemove() throws Exception
+    {
+        TileIndex<String> index = new TileIndex<>(4);
+        for (int col = -20; col < 20; ++col)
+        {
+            for (int row = -20; row < 20; ++row)
+            {
+                index.put(col, row, col + "," + row);
+            }
+        }
+        assertEquals(1600, index.size());
+        assertEquals("-5,19", index.get(-5, 19));
+        assertNull(index.get(20, 0));
+
+        assertEquals("3,4", index.remove(3, 4));
+        assertNull(index.get(3, 4));
+        assertEquals(1599, index.size());
+        assertEquals("3,5", index.get(3, 5));
+    }
+
+    @Test
+    public void removeWhileIterating() throws Exception
+    {
+        TileIndex<String> index = new TileIndex<>(16);
+        for (int col = 0; col < 10; ++col)
+        {
+            index.put(col, 0, "t" + col);
+        }
+
+        int visited = 0;
+        for (int slot = index.firstSlot(); slot >= 0; slot = index.nextSlot(slot))
+        {
+            ++visited;
+            if (index.colAt(slot) % 2 == 0)
+            {
+                index.removeAt(slot);
+            }
+        }
+        assertEquals(10, visited);
+        assertEquals(5, index.size());
+        assertNull(index.get(4, 0));
+        assertEquals("t5", index.get(5, 0));
+    }
+
+    @Test
+    public void rangeVisitsOnlyContainedTiles() throws Exception
+    {
+        TileIndex<String> index = new TileIndex<>(16);
+        for (int col = -5; col <= 5; ++col)
+        {
+            for (int row = -5; row <= 5; ++row)
+            {
+                index.put(col, row, col + "," + row);
+            }
+        }
+
+        final Set<String> seen = new HashSet<>();
+        TileIndex.Visitor<String> visitor = new TileIndex.Visitor<String>()
+        {
+            @Override
+            public void visit(int col, int row, String tile)
+            {
+                assertTrue(col >= -1 && col <= 1 && row >= 0 && row <= 2);
+                seen.add(tile);
+            }
+        };
+        index.forEachInRange(-1, 0, 1, 2, visitor);
+        assertEquals(9, seen.size());
+
+        // Range larger than the resident set takes the scanning path.
+        seen.clear();
+        index.forEachInRange(-100, -100, 100, 100, new TileIndex.Visitor<String>()
+        {
+            @Override
+            public void visit(int col, int row, String tile)
+            {
+                seen.add(tile);
+            }
+        });
+        assertEquals(121, seen.size());
+    }
+
+    @Test
+    public void listenerSeesAddsAndRemoves() throws Exception
+    {
+        final List<String> events = new ArrayList<>();
+        TileIndex<String> index = new TileIndex<>(4);
+        index.setListener(new TileIndex.Listener<String>()
+        {
+            @Override
+            public void onTileAdded(int col, int row, String tile)
+            {
+                events.add("+" + tile);
+            }
+
+            @Override
+            public void onTileRemoved(int col, int row, String tile)
+            {
+                events.add("-" + tile);
+            }
+        });
+
+        index.put(1, 1, "a");
+        index.put(1, 1, "b");
+        index.remove(1, 1);
+        assertEquals("[+a, -a, +b, -b]", events.toString());
+    }
+}
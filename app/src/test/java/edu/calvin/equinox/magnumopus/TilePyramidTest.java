@@ -0,0 +1,51 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TilePyramidTest
+{
+    @Test
+    public void levelDrawsTilesBetweenHalfAndFullSize()
+    {
+        assertEquals(0, TilePyramid.levelFor(2));
+        assertEquals(0, TilePyramid.levelFor(1));
+        assertEquals(0, TilePyramid.levelFor(0.6f));
+        assertEquals(1, TilePyramid.levelFor(0.5f));
+        assertEquals(1, TilePyramid.levelFor(0.3f));
+        assertEquals(2, TilePyramid.levelFor(0.25f));
+        assertEquals(TilePyramid.MAX_LEVEL, TilePyramid.levelFor(0.001f));
+    }
+
+    @Test
+    public void levelIndexRoundsDown()
+    {
+        int span = TilePyramid.spanOf(2);
+        assertEquals(4 * Tile.TILE_SIZE, span);
+        assertEquals(0, TilePyramid.toLevelIndex(0, 2));
+        assertEquals(0, TilePyramid.toLevelIndex(span - 1, 2));
+        assertEquals(1, TilePyramid.toLevelIndex(span, 2));
+        assertEquals(-1, TilePyramid.toLevelIndex(-1, 2));
+        assertEquals(-1, TilePyramid.toLevelIndex(-span, 2));
+        assertEquals(-2, TilePyramid.toLevelIndex(-span - 1, 2));
+    }
+
+    @Test
+    public void levelZeroKeysAreTileKeys()
+    {
+        assertEquals("7-" + Tile.TILE_SIZE + "--" + 2 * Tile.TILE_SIZE,
+                TilePyramid.cacheKey(7, 0, 1, -2));
+        assertEquals("7-L3-1--2", TilePyramid.cacheKey(7, 3, 1, -2));
+    }
+
+    @Test
+    public void ancestorsContainTheTile()
+    {
+        String[] keys = TilePyramid.ancestorKeys(7, 5, -3);
+        assertEquals(TilePyramid.MAX_LEVEL, keys.length);
+        assertEquals("7-L1-2--2", keys[0]);
+        assertEquals("7-L2-1--1", keys[1]);
+        assertEquals("7-L4-0--1", keys[3]);
+    }
+}
@@ -0,0 +1,48 @@
+package edu.calvin.equinox.magnumopus;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TileTest
+{
+    @Test
+    public void batchEntryAwayFromOriginIsWholeTile() throws Exception
+    {
+        // A batch entry's x and y place the tile on the canvas.
+        JSONObject entry = new JSONObject();
+        entry.put("x", 2 * Tile.TILE_SIZE);
+        entry.put("y", -Tile.TILE_SIZE);
+        entry.put("version", 5);
+        entry.put("data", Base64Codec.encode(SolidColor.encode(0xff102030)));
+
+        Tile tile = new Tile();
+        assertTrue(tile.beginBatchSync());
+        tile.completeBatchSync(entry, null);
+
+        assertEquals(5, tile.getVersion());
+        assertTrue(tile.isSolid());
+        assertEquals(0xff102030, tile.getSolidColor());
+        assertFalse(tile.isSyncing());
+    }
+
+    @Test
+    public void patchOffsetsHaveTheirOwnKeys() throws Exception
+    {
+        JSONObject entry = new JSONObject(TileJson.writeUpdate(new byte[] {1}, 3, true, 16, 32));
+        assertFalse(entry.has("x"));
+        TileFrame frame = TileJson.read(entry);
+        assertTrue(frame.isPatch);
+        assertEquals(16, frame.left);
+        assertEquals(32, frame.top);
+
+        entry.remove("patch_x");
+        entry.remove("patch_y");
+        entry.put("x", 256);
+        entry.put("y", 512);
+        assertFalse(TileJson.read(entry).isPatch);
+    }
+}
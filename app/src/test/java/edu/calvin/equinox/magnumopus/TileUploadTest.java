@@ -0,0 +1,202 @@
+package edu.calvin.equinox.magnumopus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TileUploadTest
+{
+    private static final byte[] WHOLE = {1, 2, 3, 4};
+    private static final byte[] PART = {5, 6};
+
+    /**
+     * Edits covering part of a tile; the "PNGs" are placeholder bytes.
+     */
+    private static class FakeImage implements TileUpload.Image
+    {
+        @Override
+        public boolean isPatch()
+        {
+            return true;
+        }
+
+        @Override
+        public int getLeft()
+        {
+            return 16;
+        }
+
+        @Override
+        public int getTop()
+        {
+            return 32;
+        }
+
+        @Override
+        public void writePng(OutputStream os, boolean patch) throws IOException
+        {
+            os.write(patch ? PART : WHOLE);
+        }
+    }
+
+    /**
+     * Stand-in for a tile server taking JSON updates. Unless it supports
+     * patches it ignores patch_x and patch_y, or with m_isStrict refuses
+     * them.
+     */
+    private HttpServer m_server;
+    private String m_url;
+    private volatile boolean m_supportsPatches;
+    private volatile boolean m_isStrict;
+    private final List<JSONObject> m_posts = new ArrayList<>();
+
+    @Before
+    public void startServer() throws Exception
+    {
+        TileUpload.m_canUploadFrames = false;
+        TileUpload.m_canUploadPatches = false;
+
+        m_server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        m_server.createContext("/tile", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                JSONObject post;
+                try
+                {
+                    post = new JSONObject(readBody(exchange.getRequestBody()));
+                } catch (Exception e)
+                {
+                    throw new IOException(e);
+                }
+                synchronized (m_posts)
+                {
+                    m_posts.add(post);
+                }
+
+                if (post.has("patch_x") && !m_supportsPatches && m_isStrict)
+                {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+                    exchange.close();
+                    return;
+                }
+                if (m_supportsPatches)
+                {
+                    exchange.getResponseHeaders().set(TileUpload.PATCH_HEADER, "1");
+                }
+                byte[] body = "{\"version\":4}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        m_server.start();
+        m_url = "http://127.0.0.1:" + m_server.getAddress().getPort() + "/tile";
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        m_server.stop(0);
+        TileUpload.m_canUploadPatches = false;
+    }
+
+    private static String readBody(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len;
+        while ((len = is.read(buf)) > 0)
+        {
+            out.write(buf, 0, len);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private void upload() throws Exception
+    {
+        HttpURLConnection conn = TileUpload.post(m_url, 3, new FakeImage());
+        assertEquals(200, conn.getResponseCode());
+        TileUpload.readCapabilities(conn);
+        Http.readString(conn);
+    }
+
+    private JSONObject post(int i)
+    {
+        synchronized (m_posts)
+        {
+            return m_posts.get(i);
+        }
+    }
+
+    @Test
+    public void patchesWaitForTheServerToOfferThem() throws Exception
+    {
+        upload();
+        JSONObject sent = post(0);
+        assertFalse(sent.has("patch_x"));
+        assertEquals(Base64Codec.encode(WHOLE), sent.getString("data"));
+        assertFalse(TileUpload.m_canUploadPatches);
+    }
+
+    @Test
+    public void offeredPatchesAreUsed() throws Exception
+    {
+        m_supportsPatches = true;
+        upload();
+        upload();
+        assertFalse(post(0).has("patch_x"));
+        JSONObject sent = post(1);
+        assertEquals(16, sent.getInt("patch_x"));
+        assertEquals(32, sent.getInt("patch_y"));
+        assertEquals(Base64Codec.encode(PART), sent.getString("data"));
+    }
+
+    @Test
+    public void refusedPatchIsSentWhole() throws Exception
+    {
+        TileUpload.m_canUploadPatches = true;
+        m_isStrict = true;
+        upload();
+        assertTrue(post(0).has("patch_x"));
+        JSONObject sent = post(1);
+        assertFalse(sent.has("patch_x"));
+        assertEquals(3, sent.getInt("version"));
+        assertEquals(Base64Codec.encode(WHOLE), sent.getString("data"));
+        assertFalse(TileUpload.m_canUploadPatches);
+    }
+
+    @Test
+    public void ignoredPatchIsSentWhole() throws Exception
+    {
+        TileUpload.m_canUploadPatches = true;
+        upload();
+        assertTrue(post(0).has("patch_x"));
+        assertEquals(Base64Codec.encode(WHOLE), post(1).getString("data"));
+        assertFalse(TileUpload.m_canUploadPatches);
+
+        // Later edits go whole from the start.
+        upload();
+        assertFalse(post(2).has("patch_x"));
+    }
+}
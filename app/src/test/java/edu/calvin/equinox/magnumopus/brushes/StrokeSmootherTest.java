@@ -0,0 +1,80 @@
+package edu.calvin.equinox.magnumopus.brushes;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.calvin.equinox.magnumopus.Coordinate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StrokeSmootherTest
+{
+    private static final class RecordingSink implements StrokeSmoother.Sink
+    {
+        final List<float[]> m_points = new ArrayList<>();
+
+        @Override
+        public boolean onPoint(Coordinate<Float> point)
+        {
+            m_points.add(new float[] {point.x, point.y});
+            return true;
+        }
+    }
+
+    @Test
+    public void curvesRunBetweenMidpoints()
+    {
+        Stroke stroke = new Stroke();
+        stroke.add(0, 0);
+        stroke.add(100, 0);
+        stroke.add(100, 100);
+        float[] anchors = new float[6];
+
+        // The first segment is a straight line to the first midpoint.
+        StrokeSmoother.segment(stroke, 1, anchors);
+        assertArrayEquals(new float[] {0, 0, 25, 0, 50, 0}, anchors, 0);
+
+        StrokeSmoother.segment(stroke, 2, anchors);
+        assertArrayEquals(new float[] {50, 0, 100, 0, 100, 50}, anchors, 0);
+    }
+
+    @Test
+    public void stampsAreSpacedApart()
+    {
+        float[] anchors = {0, 0, 50, 0, 100, 0};
+        RecordingSink sink = new RecordingSink();
+        StrokeSmoother.walk(anchors, StrokeSmoother.SEGMENT_STEP, sink);
+
+        assertTrue(sink.m_points.size() > 10);
+        float lastX = 0;
+        for (float[] point : sink.m_points)
+        {
+            assertTrue(point[0] - lastX > StrokeSmoother.SPACING);
+            assertEquals(0, point[1], 0);
+            lastX = point[0];
+        }
+    }
+
+    @Test
+    public void lookaheadNeedsMovement()
+    {
+        Stroke stroke = new Stroke();
+        float[] anchors = new float[6];
+        stroke.add(10, 10);
+        assertFalse(StrokeSmoother.lookahead(stroke, anchors));
+        stroke.add(12, 10);
+        assertFalse(StrokeSmoother.lookahead(stroke, anchors));
+
+        stroke.add(32, 10);
+        assertTrue(StrokeSmoother.lookahead(stroke, anchors));
+        // Starts between the last two points and heads on in their direction.
+        assertEquals(22, anchors[0], 0);
+        assertTrue(anchors[4] > 32);
+        assertEquals(10, anchors[5], 0);
+    }
+}
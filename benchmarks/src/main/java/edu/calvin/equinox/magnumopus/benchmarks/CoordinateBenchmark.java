@@ -0,0 +1,46 @@
+package edu.calvin.equinox.magnumopus.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.calvin.equinox.magnumopus.Coordinate;
+
+/**
+ * Point math used for every step along a brush stroke.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoordinateBenchmark
+{
+    private Coordinate<Float> m_p0 = new Coordinate<>(12.5f, 40f);
+    private Coordinate<Float> m_p1 = new Coordinate<>(30f, -7.25f);
+    private Coordinate<Float> m_point = new Coordinate<>(0f, 0f);
+    private float m_t = 0.37f;
+
+    @Benchmark
+    public Coordinate<Float> quadPoint()
+    {
+        Coordinate.quadPoint(0, 0, 50, 120, 100, 0, m_t, m_point);
+        return m_point;
+    }
+
+    @Benchmark
+    public float dist()
+    {
+        return Coordinate.dist(m_p0, m_p1);
+    }
+}
@@ -0,0 +1,92 @@
+package edu.calvin.equinox.magnumopus.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.calvin.equinox.magnumopus.Coordinate;
+import edu.calvin.equinox.magnumopus.brushes.Stroke;
+import edu.calvin.equinox.magnumopus.brushes.StrokeSmoother;
+
+/**
+ * The smoothing loops of PaintBrush.drawPreview(), without the drawing: a
+ * whole stroke walked segment by segment, plus the lead curve.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StrokeSmootherBenchmark
+{
+    /**
+     * Counts stamps in place of drawing them.
+     */
+    private static final class CountingSink implements StrokeSmoother.Sink
+    {
+        int m_count;
+
+        @Override
+        public boolean onPoint(Coordinate<Float> point)
+        {
+            ++m_count;
+            return true;
+        }
+    }
+
+    private Stroke m_stroke;
+    private float[] m_anchors;
+    private CountingSink m_sink;
+
+    @Setup
+    public void setUp()
+    {
+        // A wavy stroke of 200 touch events, about 8 pixels apart.
+        m_stroke = new Stroke();
+        for (int i = 0; i < 200; ++i)
+        {
+            m_stroke.add(i * 8f, 200 + 80 * (float)Math.sin(i / 10.0));
+        }
+        m_anchors = new float[6];
+        m_sink = new CountingSink();
+    }
+
+    @Benchmark
+    public int smoothStroke()
+    {
+        m_sink.m_count = 0;
+        for (int i = 1; i < m_stroke.size(); ++i)
+        {
+            StrokeSmoother.segment(m_stroke, i, m_anchors);
+            StrokeSmoother.walk(m_anchors, StrokeSmoother.SEGMENT_STEP, m_sink);
+        }
+        if (StrokeSmoother.lookahead(m_stroke, m_anchors))
+        {
+            StrokeSmoother.walk(m_anchors, StrokeSmoother.LOOKAHEAD_STEP, m_sink);
+        }
+        return m_sink.m_count;
+    }
+
+    /**
+     * One new touch event, the usual work per frame while painting.
+     */
+    @Benchmark
+    public int smoothSegment()
+    {
+        m_sink.m_count = 0;
+        StrokeSmoother.segment(m_stroke, m_stroke.size() - 1, m_anchors);
+        StrokeSmoother.walk(m_anchors, StrokeSmoother.SEGMENT_STEP, m_sink);
+        return m_sink.m_count;
+    }
+}
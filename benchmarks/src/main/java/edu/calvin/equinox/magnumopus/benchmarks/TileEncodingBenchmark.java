@@ -0,0 +1,105 @@
+package edu.calvin.equinox.magnumopus.benchmarks;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import edu.calvin.equinox.magnumopus.Base64Codec;
+import edu.calvin.equinox.magnumopus.TileFrame;
+import edu.calvin.equinox.magnumopus.TileJson;
+
+/**
+ * Encoding tiles for the wire: the JSON format and the Base64 inside it,
+ * next to the binary TileFrame format. PNG compression is left out, since it
+ * needs the device; the image is random bytes of a typical PNG size.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TileEncodingBenchmark
+{
+    /**
+     * Size of the PNG: a sparse tile, and a busy one.
+     */
+    @Param({"4096", "65536"})
+    public int m_pngSize;
+
+    private byte[] m_png;
+    private String m_base64;
+    private String m_json;
+    private byte[] m_frame;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        m_png = new byte[m_pngSize];
+        new Random(42).nextBytes(m_png);
+        m_base64 = Base64Codec.encode(m_png);
+        m_json = TileJson.writeUpdate(m_png, 7, false, 0, 0);
+        m_frame = writeFrame();
+    }
+
+    @Benchmark
+    public String base64Encode()
+    {
+        return Base64Codec.encode(m_png);
+    }
+
+    @Benchmark
+    public byte[] base64Decode()
+    {
+        return Base64Codec.decode(m_base64);
+    }
+
+    @Benchmark
+    public String jsonWrite() throws JSONException
+    {
+        return TileJson.writeUpdate(m_png, 7, false, 0, 0);
+    }
+
+    @Benchmark
+    public TileFrame jsonRead() throws JSONException
+    {
+        return TileJson.read(new JSONObject(m_json));
+    }
+
+    @Benchmark
+    public byte[] frameWrite() throws IOException
+    {
+        return writeFrame();
+    }
+
+    @Benchmark
+    public TileFrame frameRead() throws IOException
+    {
+        return TileFrame.read(new ByteArrayInputStream(m_frame), m_frame.length);
+    }
+
+    private byte[] writeFrame() throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(TileFrame.HEADER_LENGTH + m_png.length);
+        TileFrame.writeHeader(os, 7);
+        os.write(m_png);
+        return os.toByteArray();
+    }
+}
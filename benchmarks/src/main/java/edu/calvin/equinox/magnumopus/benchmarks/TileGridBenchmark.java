@@ -0,0 +1,93 @@
+package edu.calvin.equinox.magnumopus.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.calvin.equinox.magnumopus.TileGrid;
+import edu.calvin.equinox.magnumopus.TileIndex;
+
+/**
+ * Mapping positions to tiles, as done for every visible tile on each frame
+ * and scroll.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TileGridBenchmark
+{
+    /**
+     * Positions on both sides of the origin, as a pan would visit.
+     */
+    private int[] m_positions;
+    /**
+     * A screen's worth of tiles plus the buffer around it.
+     */
+    private TileIndex<Object> m_tiles;
+
+    @Setup
+    public void setUp()
+    {
+        m_positions = new int[256];
+        for (int i = 0; i < m_positions.length; ++i)
+        {
+            m_positions[i] = (i - m_positions.length / 2) * 37;
+        }
+
+        m_tiles = new TileIndex<>(64);
+        for (int col = -1; col <= 6; ++col)
+        {
+            for (int row = -1; row <= 10; ++row)
+            {
+                m_tiles.put(col, row, new Object());
+            }
+        }
+    }
+
+    @Benchmark
+    public void align(Blackhole blackhole)
+    {
+        for (int pos : m_positions)
+        {
+            blackhole.consume(TileGrid.align(pos));
+        }
+    }
+
+    @Benchmark
+    public void toTileIndex(Blackhole blackhole)
+    {
+        for (int pos : m_positions)
+        {
+            blackhole.consume(TileGrid.toTileIndex(pos));
+        }
+    }
+
+    /**
+     * Look up every tile around the screen, as loadTiles() does.
+     */
+    @Benchmark
+    public void lookupScreen(Blackhole blackhole)
+    {
+        for (int col = -1; col <= 6; ++col)
+        {
+            for (int row = -1; row <= 10; ++row)
+            {
+                blackhole.consume(m_tiles.get(col, row));
+            }
+        }
+    }
+}